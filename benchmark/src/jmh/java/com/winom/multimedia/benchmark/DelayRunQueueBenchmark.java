@@ -0,0 +1,42 @@
+package com.winom.multimedia.benchmark;
+
+import com.winom.multimedia.utils.DelayRunQueue;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * DelayRunQueue每帧都会调用rerun，大部分时候队列是空的
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+public class DelayRunQueueBenchmark {
+    @Param({"1", "8"})
+    public int runnableCount;
+
+    private final DelayRunQueue mQueue = new DelayRunQueue();
+    private int mCounter = 0;
+    private final Runnable mRunnable = () -> mCounter++;
+
+    @Benchmark
+    public void rerunEmpty() {
+        mQueue.rerun();
+    }
+
+    @Benchmark
+    public int addAndRerun() {
+        for (int i = 0; i < runnableCount; ++i) {
+            mQueue.addRunnable(mRunnable);
+        }
+        mQueue.rerun();
+        return mCounter;
+    }
+}
@@ -0,0 +1,46 @@
+package com.winom.multimedia.benchmark;
+
+import com.winom.multimedia.utils.FutureObject;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+public class FutureObjectBenchmark {
+    private final Object mResult = new Object();
+    private FutureObject<Object> mDoneFuture;
+
+    @Setup
+    public void setup() {
+        mDoneFuture = new FutureObject<>();
+        mDoneFuture.setResult(mResult);
+    }
+
+    /**
+     * 创建、设置结果并读取
+     */
+    @Benchmark
+    public Object setAndGet() throws ExecutionException, InterruptedException {
+        FutureObject<Object> future = new FutureObject<>();
+        future.setResult(mResult);
+        return future.get();
+    }
+
+    /**
+     * 读取已经有结果的FutureObject
+     */
+    @Benchmark
+    public Object getDone() throws ExecutionException, InterruptedException {
+        return mDoneFuture.get();
+    }
+}
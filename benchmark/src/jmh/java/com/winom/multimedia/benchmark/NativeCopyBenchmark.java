@@ -0,0 +1,64 @@
+package com.winom.multimedia.benchmark;
+
+import com.winom.multimedia.utils.JniEntry;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 开发机版本的libmediaengine中的拷贝，和Java的ByteBuffer拷贝对比，3840字节为48kHz双声道20ms的PCM
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+public class NativeCopyBenchmark {
+    @Param({"3840", "65536"})
+    public int size;
+
+    private ByteBuffer mSrc;
+    private ByteBuffer mDst;
+
+    @Setup
+    public void setup() {
+        mSrc = ByteBuffer.allocateDirect(size);
+        mDst = ByteBuffer.allocateDirect(size);
+        for (int i = 0; i < size; ++i) {
+            mSrc.put(i, (byte) i);
+        }
+
+        // 检查一下native的拷贝结果，避免测到错误的实现
+        JniEntry.byteBufferCopyWithOffset(mSrc, 1, mDst, 0, size - 1);
+        if (mDst.get(0) != mSrc.get(1) || mDst.get(size - 2) != mSrc.get(size - 1)) {
+            throw new IllegalStateException("native copy result mismatch");
+        }
+    }
+
+    @Benchmark
+    public ByteBuffer nativeCopy() {
+        JniEntry.byteBufferCopy(mSrc, mDst, size);
+        return mDst;
+    }
+
+    @Benchmark
+    public ByteBuffer nativeCopyWithOffset() {
+        JniEntry.byteBufferCopyWithOffset(mSrc, 0, mDst, 0, size);
+        return mDst;
+    }
+
+    @Benchmark
+    public ByteBuffer byteBufferPut() {
+        mSrc.clear();
+        mDst.clear();
+        mDst.put(mSrc);
+        return mDst;
+    }
+}
@@ -0,0 +1,71 @@
+package com.winom.multimedia.benchmark;
+
+import com.winom.multimedia.exceptions.ProcessException;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ProvidedStage在生产者和消费者之间传递buffer的吞吐
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Group)
+public class ProvidedStageBenchmark {
+    @Param({"3", "16"})
+    public int bufferCount;
+
+    private SyntheticStages.BufferSource mSource;
+
+    @Setup
+    public void setup() {
+        mSource = new SyntheticStages.BufferSource(bufferCount);
+        mSource.setup();
+    }
+
+    /**
+     * 同一个线程中供给、读取、归还、回收一个buffer
+     */
+    @Benchmark
+    @Group("sameThread")
+    public Object sameThreadHandoff() throws ProcessException {
+        mSource.processFrame();
+        Object buffer = mSource.dequeueOutputBuffer();
+        mSource.enqueueOutputBuffer(buffer);
+        return buffer;
+    }
+
+    /**
+     * 生产者线程回收并供给buffer
+     */
+    @Benchmark
+    @Group("crossThread")
+    @GroupThreads(1)
+    public void producer() throws ProcessException {
+        mSource.processFrame();
+    }
+
+    /**
+     * 消费者线程读取并归还buffer
+     */
+    @Benchmark
+    @Group("crossThread")
+    @GroupThreads(1)
+    public Object consumer() {
+        Object buffer = mSource.dequeueOutputBuffer();
+        if (buffer != null) {
+            mSource.enqueueOutputBuffer(buffer);
+        }
+        return buffer;
+    }
+}
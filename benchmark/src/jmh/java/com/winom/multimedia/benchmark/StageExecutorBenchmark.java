@@ -0,0 +1,73 @@
+package com.winom.multimedia.benchmark;
+
+import com.winom.multimedia.pipeline.StageExecutor;
+import com.winom.multimedia.pipeline.StageScheduler;
+import com.winom.multimedia.pipeline.StageTask;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * StageExecutor从start到所有任务结束回调的延迟，每个任务只处理一帧
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+public class StageExecutorBenchmark {
+    @Param({"1", "4"})
+    public int taskCount;
+
+    @Param({"false", "true"})
+    public boolean useSharedScheduler;
+
+    private StageScheduler mScheduler;
+
+    @Setup
+    public void setup() {
+        mScheduler = useSharedScheduler ? new StageScheduler(Runtime.getRuntime().availableProcessors()) : null;
+    }
+
+    @TearDown
+    public void tearDown() {
+        if (mScheduler != null) {
+            mScheduler.shutdown();
+        }
+    }
+
+    @Benchmark
+    public void startToFinish() throws InterruptedException {
+        List<StageTask> tasks = new ArrayList<>(taskCount);
+        for (int i = 0; i < taskCount; ++i) {
+            tasks.add(new StageTask("task" + i, Collections.singletonList(new SyntheticStages.CountdownStage(1)),
+                    0, StageTask.ScheduleMode.EVENT_DRIVEN));
+        }
+
+        CountDownLatch latch = new CountDownLatch(1);
+        StageExecutor executor = new StageExecutor(tasks, new StageExecutor.ExecutorListener() {
+            @Override
+            public void onAllTaskFinished(StageExecutor executor) {
+                latch.countDown();
+            }
+
+            @Override
+            public void onTaskFailed(StageExecutor executor, StageTask failedTask, Throwable error) {
+                latch.countDown();
+            }
+        }, mScheduler);
+        executor.start();
+        latch.await();
+    }
+}
@@ -0,0 +1,45 @@
+package com.winom.multimedia.benchmark;
+
+import com.winom.multimedia.pipeline.Stage;
+import com.winom.multimedia.pipeline.StageTask;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * StageTask每一轮调度的开销，结果为每一轮的耗时
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+public class StageTaskBenchmark {
+    private static final int FRAME_COUNT = 10000;
+
+    @Param({"1", "4"})
+    public int stageCount;
+
+    @Param({"POLLING", "EVENT_DRIVEN"})
+    public StageTask.ScheduleMode scheduleMode;
+
+    @Benchmark
+    @OperationsPerInvocation(FRAME_COUNT)
+    public void processLoop() {
+        List<Stage> stages = new ArrayList<>(stageCount);
+        for (int i = 0; i < stageCount; ++i) {
+            stages.add(new SyntheticStages.CountdownStage(FRAME_COUNT));
+        }
+
+        // 轮询间隔设为0，只测量调度本身的开销
+        new StageTask("benchmark", stages, 0, scheduleMode).run();
+    }
+}
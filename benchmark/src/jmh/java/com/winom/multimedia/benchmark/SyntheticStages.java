@@ -0,0 +1,86 @@
+package com.winom.multimedia.benchmark;
+
+import com.winom.multimedia.exceptions.ProcessException;
+import com.winom.multimedia.pipeline.ProvidedStage;
+import com.winom.multimedia.pipeline.Stage;
+
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.Queue;
+
+/**
+ * 基准测试中使用的Stage，不依赖Android的任何东西
+ */
+final class SyntheticStages {
+    private SyntheticStages() {
+    }
+
+    /**
+     * 有固定个数buffer的数据源，buffer归还后马上再次供给出去
+     */
+    static class BufferSource extends ProvidedStage<Object> {
+        private final Queue<Object> mFreeBuffers = new ArrayDeque<>();
+
+        BufferSource(int bufferCount) {
+            for (int i = 0; i < bufferCount; ++i) {
+                mFreeBuffers.add(new Object());
+            }
+        }
+
+        @Override
+        public void setup() {
+            setState(State.SETUPED);
+        }
+
+        @Override
+        public void processFrame() throws ProcessException {
+            super.processFrame();
+            Object buffer;
+            while ((buffer = mFreeBuffers.poll()) != null) {
+                enqueueProcessedBuffer(buffer);
+            }
+        }
+
+        @Override
+        protected void recycleBuffers(List<Object> canReuseBuffers) {
+            for (int i = 0; i < canReuseBuffers.size(); ++i) {
+                mFreeBuffers.add(canReuseBuffers.get(i));
+            }
+        }
+
+        @Override
+        public void release() {
+        }
+    }
+
+    /**
+     * 处理指定帧数之后就结束的Stage，每帧都会唤醒任务，模拟一直有数据需要处理
+     */
+    static class CountdownStage extends Stage {
+        private final int mFrameCount;
+        private int mRemainFrames;
+
+        CountdownStage(int frameCount) {
+            mFrameCount = frameCount;
+        }
+
+        @Override
+        public void setup() {
+            mRemainFrames = mFrameCount;
+            setState(State.SETUPED);
+        }
+
+        @Override
+        public void processFrame() {
+            if (--mRemainFrames <= 0) {
+                setState(State.DONE);
+            } else {
+                wakeupTask();
+            }
+        }
+
+        @Override
+        public void release() {
+        }
+    }
+}
@@ -0,0 +1,20 @@
+package android.media;
+
+/**
+ * JVM上运行基准测试时替代Android的MediaCodec，只有Frame用到的BufferInfo和标记
+ */
+public final class MediaCodec {
+    public static final int BUFFER_FLAG_SYNC_FRAME = 1;
+    public static final int BUFFER_FLAG_CODEC_CONFIG = 2;
+    public static final int BUFFER_FLAG_END_OF_STREAM = 4;
+
+    private MediaCodec() {
+    }
+
+    public static final class BufferInfo {
+        public int offset;
+        public int size;
+        public long presentationTimeUs;
+        public int flags;
+    }
+}
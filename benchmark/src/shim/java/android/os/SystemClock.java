@@ -0,0 +1,17 @@
+package android.os;
+
+/**
+ * JVM上运行基准测试时替代Android的SystemClock
+ */
+public final class SystemClock {
+    private SystemClock() {
+    }
+
+    public static long elapsedRealtime() {
+        return System.nanoTime() / 1000000;
+    }
+
+    public static long elapsedRealtimeNanos() {
+        return System.nanoTime();
+    }
+}
@@ -0,0 +1,192 @@
+package com.winom.multimedia.encoder;
+
+import com.winom.multimedia.source.Frame;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 按AudioRecorder输出的帧（44100Hz双声道，每帧20ms，时间戳按字节数推算到微秒）驱动Encoder.feedOneFrame中的拆分、合并，
+ * 检查提交给codec的输入buffer的大小、时间戳和数据
+ */
+public class CodecInputPackerTest {
+    private static final int SAMPLE_RATE = 44100;
+    private static final int CHANNEL_COUNT = 2;
+    private static final int PCM_FRAME_BYTES = CHANNEL_COUNT * 2;
+    private static final long BYTES_PER_SECOND = (long) SAMPLE_RATE * PCM_FRAME_BYTES;
+    private static final int FRAME_SIZE = SAMPLE_RATE * 20 / 1000 * PCM_FRAME_BYTES;
+    private static final long START_TIME_US = 123_456_789;
+
+    @Test
+    public void coalescesContinuousFrames() {
+        List<Frame> frames = createRecorderFrames(50, -1, 0);
+        List<InputBuffer> inputs = feed(frames, 8192);
+
+        assertContinuous(inputs, 0, inputs.size());
+        // 除了最后一个，每个输入buffer都填满到放不下一个采样
+        for (int i = 0; i < inputs.size() - 1; ++i) {
+            assertTrue("input " + i + " isn't full: " + inputs.get(i).mSize,
+                    inputs.get(i).mSize > 8192 - PCM_FRAME_BYTES);
+        }
+        assertTrue("frames aren't coalesced", inputs.size() < frames.size());
+        assertData(inputs, 50 * FRAME_SIZE);
+    }
+
+    @Test
+    public void splitsOnPcmFrameBoundary() {
+        // 4098不是采样大小的整数倍，拆分时需要对齐
+        List<InputBuffer> inputs = feed(createRecorderFrames(20, -1, 0), 4098);
+
+        for (int i = 0; i < inputs.size(); ++i) {
+            assertEquals("input " + i + " splits a pcm frame", 0, inputs.get(i).mSize % PCM_FRAME_BYTES);
+        }
+        assertContinuous(inputs, 0, inputs.size());
+        assertData(inputs, 20 * FRAME_SIZE);
+    }
+
+    @Test
+    public void ptsGapStartsNewInputBuffer() {
+        long gapUs = TimeUnit.MILLISECONDS.toMicros(100);
+        List<Frame> frames = createRecorderFrames(20, 7, gapUs);
+        long gapFramePts = frames.get(7).presentationTimeUs;
+        List<InputBuffer> inputs = feed(frames, 8192);
+
+        int gapIndex = -1;
+        for (int i = 0; i < inputs.size(); ++i) {
+            if (inputs.get(i).mPts == gapFramePts) {
+                gapIndex = i;
+            }
+        }
+        assertTrue("no input buffer starts at the gap", gapIndex > 0);
+        InputBuffer beforeGap = inputs.get(gapIndex - 1);
+        assertPtsNear("end of input before gap", START_TIME_US + bytesToUs(7L * FRAME_SIZE),
+                beforeGap.mPts + bytesToUs(beforeGap.mSize));
+        assertContinuous(inputs, 0, gapIndex);
+        assertContinuous(inputs, gapIndex, inputs.size());
+        assertData(inputs, 20 * FRAME_SIZE);
+    }
+
+    /**
+     * 和AudioRecorder一样：时间戳为开始时间加上已经读取的字节数对应的时长，gapFrame及之后的帧整体推后gapUs
+     */
+    private static List<Frame> createRecorderFrames(int count, int gapFrame, long gapUs) {
+        List<Frame> frames = new ArrayList<>(count);
+        for (int i = 0; i < count; ++i) {
+            Frame frame = new Frame(ByteBuffer.allocateDirect(FRAME_SIZE));
+            for (int j = 0; j < FRAME_SIZE; ++j) {
+                frame.buffer.put(j, streamByte((long) i * FRAME_SIZE + j));
+            }
+            frame.offset = 0;
+            frame.size = FRAME_SIZE;
+            frame.presentationTimeUs = START_TIME_US + bytesToUs((long) i * FRAME_SIZE)
+                    + (gapFrame >= 0 && i >= gapFrame ? gapUs : 0);
+            frames.add(frame);
+        }
+        return frames;
+    }
+
+    /**
+     * 按Encoder.feedOneFrame的顺序调用，codec总是有空闲的输入buffer
+     */
+    private static List<InputBuffer> feed(List<Frame> frames, int inputBufferCapacity) {
+        CodecInputPacker packer = new CodecInputPacker(BYTES_PER_SECOND, PCM_FRAME_BYTES);
+        List<InputBuffer> inputs = new ArrayList<>();
+        ByteBuffer inputBuffer = null;
+        int nextFrame = 0;
+        while (true) {
+            if (!packer.hasInputBuffer()) {
+                inputBuffer = ByteBuffer.allocateDirect(inputBufferCapacity);
+                packer.setInputBuffer(inputBuffer);
+            }
+
+            if (!packer.hasPendingFrame()) {
+                if (nextFrame == frames.size()) {
+                    break;
+                }
+                if (!packer.setPendingFrame(frames.get(nextFrame++))) {
+                    inputs.add(queueInputBuffer(packer, inputBuffer));
+                    continue;
+                }
+            }
+
+            if (!packer.copyPendingFrame() || packer.isInputBufferFull()) {
+                inputs.add(queueInputBuffer(packer, inputBuffer));
+            }
+        }
+
+        // 上游没有更多数据时已经合并的数据直接提交
+        if (packer.getInputBufferFilled() > 0) {
+            inputs.add(queueInputBuffer(packer, inputBuffer));
+        }
+        return inputs;
+    }
+
+    private static InputBuffer queueInputBuffer(CodecInputPacker packer, ByteBuffer inputBuffer) {
+        InputBuffer input = new InputBuffer();
+        input.mPts = packer.getInputBufferPts();
+        input.mSize = packer.getInputBufferFilled();
+        input.mData = new byte[input.mSize];
+        for (int i = 0; i < input.mSize; ++i) {
+            input.mData[i] = inputBuffer.get(i);
+        }
+        packer.resetInputBuffer();
+        return input;
+    }
+
+    /**
+     * [from, to)之间的输入buffer首尾相接：时间戳单调递增，并且等于第一个buffer的时间戳加上之前的字节数对应的时长
+     */
+    private static void assertContinuous(List<InputBuffer> inputs, int from, int to) {
+        long firstPts = inputs.get(from).mPts;
+        long byteCount = 0;
+        long lastPts = Long.MIN_VALUE;
+        for (int i = from; i < to; ++i) {
+            InputBuffer input = inputs.get(i);
+            assertTrue("pts goes backwards at input " + i, input.mPts > lastPts);
+            assertPtsNear("pts of input " + i, firstPts + bytesToUs(byteCount), input.mPts);
+            lastPts = input.mPts;
+            byteCount += input.mSize;
+        }
+    }
+
+    /**
+     * 每一帧的时间戳都取整到微秒，推算的结果最多差1微秒
+     */
+    private static void assertPtsNear(String message, long expected, long actual) {
+        assertTrue(message + ": expected " + expected + " but was " + actual, Math.abs(expected - actual) <= 1);
+    }
+
+    private static void assertData(List<InputBuffer> inputs, long totalSize) {
+        long position = 0;
+        for (InputBuffer input : inputs) {
+            for (int i = 0; i < input.mSize; ++i) {
+                if (input.mData[i] != streamByte(position)) {
+                    throw new AssertionError("data mismatch at stream position " + position);
+                }
+                position++;
+            }
+        }
+        assertEquals(totalSize, position);
+    }
+
+    private static byte streamByte(long position) {
+        return (byte) (position * 31 + (position >> 8));
+    }
+
+    private static long bytesToUs(long byteCount) {
+        return byteCount * TimeUnit.SECONDS.toMicros(1) / BYTES_PER_SECOND;
+    }
+
+    private static class InputBuffer {
+        private long mPts;
+        private int mSize;
+        private byte[] mData;
+    }
+}
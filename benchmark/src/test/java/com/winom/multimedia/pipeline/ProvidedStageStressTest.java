@@ -0,0 +1,169 @@
+package com.winom.multimedia.pipeline;
+
+import com.winom.multimedia.exceptions.ProcessException;
+import com.winom.multimedia.utils.SpscRingQueue;
+
+import org.junit.Test;
+
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * <p>ProvidedStage的无锁队列压力测试</p>
+ * 生产、读取、归还分别在三个线程中进行，检查每一帧都按顺序读到一次，每个buffer都刚好归还一次。
+ */
+public class ProvidedStageStressTest {
+    private static final int FRAME_COUNT = 3_000_000;
+    private static final int BUFFER_COUNT = 8;
+    private static final long TIMEOUT_MS = 60_000;
+
+    @Test
+    public void everyBufferComesBackExactlyOnce() throws Throwable {
+        final TestProducer producer = new TestProducer();
+        producer.setup();
+
+        // 读取者把读到的buffer交给归还线程，归还线程是mRecycledBuffers唯一的写入者
+        final SpscRingQueue<TestBuffer> toRecycle = new SpscRingQueue<>(BUFFER_COUNT);
+        final AtomicReference<Throwable> error = new AtomicReference<>();
+
+        Thread producerThread = new Thread(() -> {
+            try {
+                while (!producer.isDone()) {
+                    producer.processFrame();
+                    Thread.yield();
+                }
+            } catch (Throwable e) {
+                error.compareAndSet(null, e);
+            }
+        }, "producer");
+
+        Thread consumerThread = new Thread(() -> {
+            try {
+                long expectedSequence = 0;
+                while (expectedSequence < FRAME_COUNT) {
+                    TestBuffer buffer = producer.dequeueOutputBuffer();
+                    if (buffer == null) {
+                        Thread.yield();
+                        continue;
+                    }
+
+                    // 丢帧或者重复读到都会导致序号不连续
+                    assertEquals(expectedSequence, buffer.mSequence);
+                    assertTrue("buffer " + buffer.mId + " isn't outed", buffer.mIsOuted);
+                    expectedSequence++;
+                    while (!toRecycle.offer(buffer)) {
+                        Thread.yield();
+                    }
+                }
+                assertNull(producer.dequeueOutputBuffer());
+            } catch (Throwable e) {
+                error.compareAndSet(null, e);
+            }
+        }, "consumer");
+
+        Thread recyclerThread = new Thread(() -> {
+            try {
+                int recycledCount = 0;
+                while (recycledCount < FRAME_COUNT) {
+                    TestBuffer buffer = toRecycle.poll();
+                    if (buffer == null) {
+                        Thread.yield();
+                        continue;
+                    }
+                    producer.enqueueOutputBuffer(buffer);
+                    recycledCount++;
+                }
+            } catch (Throwable e) {
+                error.compareAndSet(null, e);
+            }
+        }, "recycler");
+
+        producerThread.start();
+        consumerThread.start();
+        recyclerThread.start();
+        producerThread.join(TIMEOUT_MS);
+        consumerThread.join(TIMEOUT_MS);
+        recyclerThread.join(TIMEOUT_MS);
+
+        if (error.get() != null) {
+            throw error.get();
+        }
+        assertTrue("pipeline didn't finish in time", producer.isDone());
+        assertEquals(FRAME_COUNT, producer.mProducedCount);
+        assertEquals(FRAME_COUNT, producer.mRecycledCount);
+        assertEquals(BUFFER_COUNT, producer.mFreeBuffers.size());
+        assertEquals(0, producer.getBufferOutedCount());
+    }
+
+    private static class TestBuffer {
+        final int mId;
+        long mSequence;
+        boolean mIsOuted;
+
+        TestBuffer(int id) {
+            mId = id;
+        }
+    }
+
+    private static class TestProducer extends ProvidedStage<TestBuffer> {
+        final ArrayDeque<TestBuffer> mFreeBuffers = new ArrayDeque<>();
+        long mProducedCount = 0;
+        long mRecycledCount = 0;
+
+        TestProducer() {
+            super(BUFFER_COUNT);
+        }
+
+        @Override
+        public void setup() {
+            for (int i = 0; i < BUFFER_COUNT; ++i) {
+                mFreeBuffers.add(new TestBuffer(i));
+            }
+            setState(State.SETUPED);
+        }
+
+        @Override
+        public void processFrame() throws ProcessException {
+            super.processFrame();
+            if (isAllDataReady() || isDone()) {
+                return;
+            }
+
+            TestBuffer buffer;
+            while ((buffer = mFreeBuffers.poll()) != null) {
+                if (buffer.mIsOuted) {
+                    throw new AssertionError("buffer " + buffer.mId + " is outed twice");
+                }
+                buffer.mIsOuted = true;
+                buffer.mSequence = mProducedCount++;
+                enqueueProcessedBuffer(buffer);
+                if (mProducedCount == FRAME_COUNT) {
+                    setState(State.ALL_DATA_READY);
+                    return;
+                }
+            }
+        }
+
+        @Override
+        protected void recycleBuffers(List<TestBuffer> canReuseBuffers) {
+            for (int i = 0; i < canReuseBuffers.size(); ++i) {
+                TestBuffer buffer = canReuseBuffers.get(i);
+                if (!buffer.mIsOuted) {
+                    throw new AssertionError("buffer " + buffer.mId + " is recycled twice");
+                }
+                buffer.mIsOuted = false;
+                mFreeBuffers.add(buffer);
+                mRecycledCount++;
+            }
+        }
+
+        @Override
+        public void release() {
+        }
+    }
+}
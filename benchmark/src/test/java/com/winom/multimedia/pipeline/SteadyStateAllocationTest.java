@@ -0,0 +1,288 @@
+package com.winom.multimedia.pipeline;
+
+import android.media.MediaCodec;
+
+import com.winom.multimedia.exceptions.ProcessException;
+import com.winom.multimedia.source.Frame;
+import com.winom.multimedia.utils.JniEntry;
+import com.winom.multimedia.utils.MeLog;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * <p>采集 -> 编码 -> 封装这种管道在稳定运行后不能分配内存</p>
+ * 三个Stage和真实的AudioRecorder、Encoder、Muxer一样使用池化的{@link Frame}、通过JNI拷贝数据、
+ * 走{@link ProvidedStage#processFrame()}的归还流程，各自运行在EVENT_DRIVEN的任务中。
+ * MediaCodec、AudioRecord、MediaMuxer在JVM上不存在，由这三个Stage代替。
+ * 预热之后统计每个任务线程分配的内存，每帧哪怕只分配一个很小的对象也会超过允许的误差。
+ */
+public class SteadyStateAllocationTest {
+    private static final int FRAME_COUNT = 300_000;
+    private static final int WARMUP_FRAMES = 100_000;
+    private static final int MEASURED_FRAMES = 150_000;
+    private static final int POOL_SIZE = 4;
+
+    /**
+     * 和AudioRecorder一样，每帧为44.1kHz双声道20ms的PCM
+     */
+    private static final int FRAME_SIZE = 3528;
+    private static final long FRAME_DURATION_US = 20_000;
+
+    /**
+     * 统计窗口中允许的误差，远小于每帧分配一次的量（至少16字节 * MEASURED_FRAMES）
+     */
+    private static final long ALLOWED_BYTES = 1024;
+
+    private static final com.sun.management.ThreadMXBean THREAD_MX_BEAN =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    @Test
+    public void steadyStateDoesNotAllocate() throws Throwable {
+        Assume.assumeTrue(THREAD_MX_BEAN.isThreadAllocatedMemorySupported());
+        THREAD_MX_BEAN.setThreadAllocatedMemoryEnabled(true);
+
+        int oldLevel = MeLog.getMinLevel();
+        MeLog.setMinLevel(MeLog.LEVEL_INFO);
+        try {
+            SourceStage source = new SourceStage();
+            TransformStage transform = new TransformStage(source);
+            SinkStage sink = new SinkStage(transform);
+
+            CountDownLatch latch = new CountDownLatch(1);
+            AtomicReference<Throwable> error = new AtomicReference<>();
+            StageExecutor executor = new StageExecutor(Arrays.asList(
+                    new StageTask("source", Collections.singletonList(source), StageTask.ScheduleMode.EVENT_DRIVEN),
+                    new StageTask("transform", Collections.singletonList(transform),
+                            StageTask.ScheduleMode.EVENT_DRIVEN),
+                    new StageTask("sink", Collections.singletonList(sink), StageTask.ScheduleMode.EVENT_DRIVEN)),
+                    new StageExecutor.ExecutorListener() {
+                        @Override
+                        public void onAllTaskFinished(StageExecutor executor) {
+                            latch.countDown();
+                        }
+
+                        @Override
+                        public void onTaskFailed(StageExecutor executor, StageTask failedTask, Throwable e) {
+                            error.compareAndSet(null, e);
+                            latch.countDown();
+                        }
+                    });
+            executor.start();
+            assertTrue("pipeline didn't finish in time", latch.await(60, TimeUnit.SECONDS));
+            if (error.get() != null) {
+                throw error.get();
+            }
+
+            assertEquals(FRAME_COUNT, sink.mReceivedCount);
+            source.mProbe.assertNoAllocation("source");
+            transform.mProbe.assertNoAllocation("transform");
+            sink.mProbe.assertNoAllocation("sink");
+        } finally {
+            MeLog.setMinLevel(oldLevel);
+        }
+    }
+
+    /**
+     * 记录某个Stage在统计窗口内，所在线程分配的内存
+     */
+    private static class AllocationProbe {
+        private long mStartBytes = -1;
+        private long mEndBytes = -1;
+
+        void onFrame(long frameIndex) {
+            if (frameIndex == WARMUP_FRAMES) {
+                mStartBytes = THREAD_MX_BEAN.getCurrentThreadAllocatedBytes();
+            } else if (frameIndex == WARMUP_FRAMES + MEASURED_FRAMES) {
+                mEndBytes = THREAD_MX_BEAN.getCurrentThreadAllocatedBytes();
+            }
+        }
+
+        void assertNoAllocation(String name) {
+            assertTrue(name + " didn't reach the measured window", mStartBytes >= 0 && mEndBytes >= 0);
+            long allocated = mEndBytes - mStartBytes;
+            assertTrue(name + " allocated " + allocated + " bytes in " + MEASURED_FRAMES + " frames",
+                    allocated <= ALLOWED_BYTES);
+        }
+    }
+
+    /**
+     * 和AudioRecorder一样，Frame池是固定的，每帧写入一段PCM大小的数据，归还后再次使用
+     */
+    private static class SourceStage extends ProvidedStage<Frame> {
+        private final ArrayDeque<Frame> mFreeFrames = new ArrayDeque<>();
+        private final AllocationProbe mProbe = new AllocationProbe();
+        private long mProducedCount = 0;
+
+        @Override
+        public void setup() {
+            for (int i = 0; i < POOL_SIZE; ++i) {
+                mFreeFrames.add(new Frame(ByteBuffer.allocateDirect(FRAME_SIZE)));
+            }
+            setState(State.SETUPED);
+        }
+
+        @Override
+        public void processFrame() throws ProcessException {
+            super.processFrame();
+            if (isAllDataReady() || isDone()) {
+                return;
+            }
+
+            Frame frame;
+            while (mProcessedBuffers.size() < mMaxFrameCount && (frame = mFreeFrames.poll()) != null) {
+                mProbe.onFrame(mProducedCount);
+                frame.offset = 0;
+                if (mProducedCount == FRAME_COUNT) {
+                    frame.size = 0;
+                    frame.flags = MediaCodec.BUFFER_FLAG_END_OF_STREAM;
+                    enqueueProcessedBuffer(frame);
+                    setState(State.ALL_DATA_READY);
+                    return;
+                }
+
+                frame.buffer.putLong(0, mProducedCount);
+                frame.size = FRAME_SIZE;
+                frame.presentationTimeUs = mProducedCount * FRAME_DURATION_US;
+                frame.flags = 0;
+                mProducedCount++;
+                enqueueProcessedBuffer(frame);
+            }
+        }
+
+        @Override
+        protected void recycleBuffers(List<Frame> canReuseBuffers) {
+            for (int i = 0; i < canReuseBuffers.size(); ++i) {
+                mFreeFrames.add(canReuseBuffers.get(i));
+            }
+        }
+
+        @Override
+        public void release() {
+        }
+    }
+
+    /**
+     * 和Encoder一样，把上游的数据通过JNI拷贝到自己的Frame中，马上归还上游的Frame
+     */
+    private static class TransformStage extends ProvidedStage<Frame> {
+        private final Provider<Frame> mUpstream;
+        private final ArrayDeque<Frame> mFreeFrames = new ArrayDeque<>();
+        private final AllocationProbe mProbe = new AllocationProbe();
+        private long mTransformedCount = 0;
+
+        TransformStage(Provider<Frame> upstream) {
+            mUpstream = upstream;
+        }
+
+        @Override
+        public void setup() {
+            for (int i = 0; i < POOL_SIZE; ++i) {
+                mFreeFrames.add(new Frame(ByteBuffer.allocateDirect(FRAME_SIZE)));
+            }
+            setState(State.SETUPED);
+        }
+
+        @Override
+        public void processFrame() throws ProcessException {
+            super.processFrame();
+            if (isAllDataReady() || isDone()) {
+                return;
+            }
+
+            while (!mFreeFrames.isEmpty()) {
+                Frame input = mUpstream.dequeueOutputBuffer();
+                if (input == null) {
+                    return;
+                }
+
+                mProbe.onFrame(mTransformedCount++);
+                Frame output = mFreeFrames.poll();
+                if (input.size > 0) {
+                    JniEntry.byteBufferCopyWithOffset(input.buffer, input.offset, output.buffer, 0, input.size);
+                }
+                output.offset = 0;
+                output.size = input.size;
+                output.presentationTimeUs = input.presentationTimeUs;
+                output.flags = input.flags;
+                mUpstream.enqueueOutputBuffer(input);
+                enqueueProcessedBuffer(output);
+                if ((output.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                    setState(State.ALL_DATA_READY);
+                    return;
+                }
+            }
+        }
+
+        @Override
+        protected void recycleBuffers(List<Frame> canReuseBuffers) {
+            for (int i = 0; i < canReuseBuffers.size(); ++i) {
+                mFreeFrames.add(canReuseBuffers.get(i));
+            }
+        }
+
+        @Override
+        public void release() {
+        }
+    }
+
+    /**
+     * 和Muxer一样，读取数据后马上归还，每帧的日志先判断级别
+     */
+    private static class SinkStage extends Stage {
+        private static final String TAG = "SinkStage";
+
+        private final Provider<Frame> mUpstream;
+        private final AllocationProbe mProbe = new AllocationProbe();
+        private long mReceivedCount = 0;
+
+        SinkStage(Provider<Frame> upstream) {
+            mUpstream = upstream;
+        }
+
+        @Override
+        public void setup() {
+            setState(State.SETUPED);
+        }
+
+        @Override
+        public void processFrame() throws ProcessException {
+            Frame frame;
+            while ((frame = mUpstream.dequeueOutputBuffer()) != null) {
+                boolean isEos = (frame.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0;
+                long sequence = isEos ? -1 : frame.buffer.getLong(frame.offset);
+                long presentationTimeUs = frame.presentationTimeUs;
+                mUpstream.enqueueOutputBuffer(frame);
+                if (isEos) {
+                    setState(State.DONE);
+                    return;
+                }
+
+                if (sequence != mReceivedCount || presentationTimeUs != mReceivedCount * FRAME_DURATION_US) {
+                    throw new ProcessException("frame " + sequence + " received, expected " + mReceivedCount);
+                }
+                mProbe.onFrame(mReceivedCount++);
+                if (MeLog.isLoggable(MeLog.LEVEL_VERBOSE)) {
+                    MeLog.v(TAG, "frame: %d, pts: %d", sequence, presentationTimeUs);
+                }
+            }
+        }
+
+        @Override
+        public void release() {
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package com.winom.multimedia.utils;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * 加载开发机版本的libmediaengine，检查native的拷贝接口
+ */
+public class JniEntryTest {
+    private static final byte UNTOUCHED = (byte) 0xA5;
+
+    @Test
+    public void byteBufferCopyCopiesFromStart() {
+        int[] sizes = {0, 1, 7, 3840, 65536};
+        for (int size : sizes) {
+            ByteBuffer src = createSource(size + 16);
+            ByteBuffer dst = createTarget(size + 16);
+
+            // 拷贝从buffer的起始地址开始，和position无关，也不修改position
+            src.position(5);
+            dst.position(3);
+            JniEntry.byteBufferCopy(src, dst, size);
+
+            assertCopied(src, 0, dst, 0, size);
+            assertEquals(5, src.position());
+            assertEquals(3, dst.position());
+        }
+    }
+
+    @Test
+    public void byteBufferCopyWithOffsetCopiesRange() {
+        int[][] cases = {
+                // srcOffset, dstOffset, size
+                {0, 0, 0},
+                {0, 0, 1},
+                {1, 0, 3839},
+                {0, 1, 3839},
+                {3, 7, 4093},
+                {17, 17, 65536},
+                {4096, 0, 4096},
+        };
+        for (int[] c : cases) {
+            int srcOffset = c[0];
+            int dstOffset = c[1];
+            int size = c[2];
+            ByteBuffer src = createSource(srcOffset + size + 16);
+            ByteBuffer dst = createTarget(dstOffset + size + 16);
+
+            JniEntry.byteBufferCopyWithOffset(src, srcOffset, dst, dstOffset, size);
+
+            assertCopied(src, srcOffset, dst, dstOffset, size);
+            assertEquals(0, src.position());
+            assertEquals(0, dst.position());
+        }
+    }
+
+    private static ByteBuffer createSource(int capacity) {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(capacity);
+        for (int i = 0; i < capacity; ++i) {
+            buffer.put(i, (byte) (i * 31 + 7));
+        }
+        return buffer;
+    }
+
+    private static ByteBuffer createTarget(int capacity) {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(capacity);
+        for (int i = 0; i < capacity; ++i) {
+            buffer.put(i, UNTOUCHED);
+        }
+        return buffer;
+    }
+
+    /**
+     * 目标buffer中只有[dstOffset, dstOffset + size)被改写
+     */
+    private static void assertCopied(ByteBuffer src, int srcOffset, ByteBuffer dst, int dstOffset, int size) {
+        for (int i = 0; i < dst.capacity(); ++i) {
+            byte expected = i >= dstOffset && i < dstOffset + size ? src.get(srcOffset + i - dstOffset) : UNTOUCHED;
+            assertEquals("byte " + i + ", srcOffset " + srcOffset + ", dstOffset " + dstOffset + ", size " + size,
+                    expected, dst.get(i));
+        }
+    }
+}
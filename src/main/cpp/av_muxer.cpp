@@ -0,0 +1,285 @@
+#include <jni.h>
+#include <cstdint>
+#include <cstdlib>
+#include <cstring>
+#include <deque>
+#include <map>
+#include <string>
+
+extern "C" {
+#include <libavformat/avformat.h>
+#include <libavutil/opt.h>
+}
+
+#ifndef __unused
+#define __unused __attribute__((unused))
+#endif
+
+// 输入的时间戳都是微秒
+static const AVRational US_TIME_BASE = {1, 1000000};
+
+// hls的muxer写完一个文件后会把.tmp的临时文件改名
+static const char *TEMP_FILE_SUFFIX = ".tmp";
+
+struct AvMuxerContext {
+    AVFormatContext *formatContext;
+    AVPacket *packet;
+    bool isHeaderWritten;
+
+    // 拦截muxer打开、关闭的文件，记录写完的文件，比如hls的分片
+    int (*originalIoOpen)(AVFormatContext *s, AVIOContext **pb, const char *url, int flags,
+                          AVDictionary **options);
+    void (*originalIoClose)(AVFormatContext *s, AVIOContext *pb);
+    std::map<AVIOContext *, std::string> openedFiles;
+    std::deque<std::string> closedFiles;
+};
+
+static AvMuxerContext *getContext(jlong handle) {
+    return reinterpret_cast<AvMuxerContext *>(handle);
+}
+
+static int ioOpen(AVFormatContext *s, AVIOContext **pb, const char *url, int flags, AVDictionary **options) {
+    auto *context = static_cast<AvMuxerContext *>(s->opaque);
+    int ret = context->originalIoOpen(s, pb, url, flags, options);
+    if (ret >= 0) {
+        context->openedFiles[*pb] = url;
+    }
+    return ret;
+}
+
+static void ioClose(AVFormatContext *s, AVIOContext *pb) {
+    auto *context = static_cast<AvMuxerContext *>(s->opaque);
+    context->originalIoClose(s, pb);
+
+    auto iterator = context->openedFiles.find(pb);
+    if (iterator == context->openedFiles.end()) {
+        return;
+    }
+
+    std::string url = iterator->second;
+    context->openedFiles.erase(iterator);
+    size_t suffixLength = strlen(TEMP_FILE_SUFFIX);
+    if (url.size() > suffixLength && url.compare(url.size() - suffixLength, suffixLength, TEMP_FILE_SUFFIX) == 0) {
+        url.resize(url.size() - suffixLength);
+    }
+    context->closedFiles.push_back(url);
+}
+
+extern "C"
+JNIEXPORT jlong JNICALL Java_com_winom_multimedia_utils_JniEntry_avMuxerOpen(JNIEnv *env,
+                                                                            jclass __unused obj,
+                                                                            jstring path,
+                                                                            jstring formatName) {
+    const char *pathStr = env->GetStringUTFChars(path, nullptr);
+    const char *formatStr = env->GetStringUTFChars(formatName, nullptr);
+    AVFormatContext *formatContext = nullptr;
+    int ret = avformat_alloc_output_context2(&formatContext, nullptr, formatStr, pathStr);
+
+    // hls之类的muxer自己打开文件
+    if (ret >= 0 && !(formatContext->oformat->flags & AVFMT_NOFILE)) {
+        ret = avio_open(&formatContext->pb, pathStr, AVIO_FLAG_WRITE);
+    }
+    env->ReleaseStringUTFChars(path, pathStr);
+    env->ReleaseStringUTFChars(formatName, formatStr);
+    if (ret < 0) {
+        avformat_free_context(formatContext);
+        return 0;
+    }
+
+    auto *context = new AvMuxerContext();
+    context->formatContext = formatContext;
+    context->packet = av_packet_alloc();
+    context->isHeaderWritten = false;
+    context->originalIoOpen = formatContext->io_open;
+    context->originalIoClose = formatContext->io_close;
+    formatContext->opaque = context;
+    formatContext->io_open = ioOpen;
+    formatContext->io_close = ioClose;
+    return reinterpret_cast<jlong>(context);
+}
+
+extern "C"
+JNIEXPORT jint JNICALL Java_com_winom_multimedia_utils_JniEntry_avMuxerAddTrack(JNIEnv *env,
+                                                                               jclass __unused obj,
+                                                                               jlong handle,
+                                                                               jstring mimeType,
+                                                                               jint width,
+                                                                               jint height,
+                                                                               jint sampleRate,
+                                                                               jint channelCount,
+                                                                               jobject extraData,
+                                                                               jint extraDataSize) {
+    AvMuxerContext *context = getContext(handle);
+    const char *mimeStr = env->GetStringUTFChars(mimeType, nullptr);
+    AVCodecID codecId = AV_CODEC_ID_NONE;
+    AVMediaType mediaType = AVMEDIA_TYPE_UNKNOWN;
+    if (strcmp(mimeStr, "video/avc") == 0) {
+        codecId = AV_CODEC_ID_H264;
+        mediaType = AVMEDIA_TYPE_VIDEO;
+    } else if (strcmp(mimeStr, "video/hevc") == 0) {
+        codecId = AV_CODEC_ID_HEVC;
+        mediaType = AVMEDIA_TYPE_VIDEO;
+    } else if (strcmp(mimeStr, "audio/mp4a-latm") == 0) {
+        codecId = AV_CODEC_ID_AAC;
+        mediaType = AVMEDIA_TYPE_AUDIO;
+    }
+    env->ReleaseStringUTFChars(mimeType, mimeStr);
+    if (codecId == AV_CODEC_ID_NONE) {
+        return -1;
+    }
+
+    AVStream *stream = avformat_new_stream(context->formatContext, nullptr);
+    if (stream == nullptr) {
+        return -2;
+    }
+    stream->time_base = US_TIME_BASE;
+
+    AVCodecParameters *codecpar = stream->codecpar;
+    codecpar->codec_type = mediaType;
+    codecpar->codec_id = codecId;
+    if (mediaType == AVMEDIA_TYPE_VIDEO) {
+        codecpar->width = width;
+        codecpar->height = height;
+    } else {
+        codecpar->sample_rate = sampleRate;
+        codecpar->channels = channelCount;
+        codecpar->channel_layout = (uint64_t) av_get_default_channel_layout(channelCount);
+    }
+
+    // H.264为起始码分隔的SPS、PPS，AAC为AudioSpecificConfig，mp4的muxer会自己转换成avcC
+    if (extraDataSize > 0) {
+        codecpar->extradata = static_cast<uint8_t *>(av_mallocz((size_t) extraDataSize
+                                                                + AV_INPUT_BUFFER_PADDING_SIZE));
+        memcpy(codecpar->extradata, env->GetDirectBufferAddress(extraData), (size_t) extraDataSize);
+        codecpar->extradata_size = extraDataSize;
+    }
+    return stream->index;
+}
+
+extern "C"
+JNIEXPORT jint JNICALL Java_com_winom_multimedia_utils_JniEntry_avMuxerStart(JNIEnv *env,
+                                                                            jclass __unused obj,
+                                                                            jlong handle,
+                                                                            jobjectArray options) {
+    AvMuxerContext *context = getContext(handle);
+
+    // options中依次为key、value
+    AVDictionary *dict = nullptr;
+    jsize count = options != nullptr ? env->GetArrayLength(options) : 0;
+    for (jsize i = 0; i + 1 < count; i += 2) {
+        auto key = static_cast<jstring>(env->GetObjectArrayElement(options, i));
+        auto value = static_cast<jstring>(env->GetObjectArrayElement(options, i + 1));
+        const char *keyStr = env->GetStringUTFChars(key, nullptr);
+        const char *valueStr = env->GetStringUTFChars(value, nullptr);
+        av_dict_set(&dict, keyStr, valueStr, 0);
+        env->ReleaseStringUTFChars(key, keyStr);
+        env->ReleaseStringUTFChars(value, valueStr);
+        env->DeleteLocalRef(key);
+        env->DeleteLocalRef(value);
+    }
+
+    int ret = avformat_write_header(context->formatContext, &dict);
+    av_dict_free(&dict);
+    if (ret < 0) {
+        return ret;
+    }
+
+    context->isHeaderWritten = true;
+    if (context->formatContext->pb != nullptr) {
+        avio_flush(context->formatContext->pb);
+    }
+    return 0;
+}
+
+extern "C"
+JNIEXPORT jint JNICALL Java_com_winom_multimedia_utils_JniEntry_avMuxerWriteSample(JNIEnv *env,
+                                                                                  jclass __unused obj,
+                                                                                  jlong handle,
+                                                                                  jint trackIndex,
+                                                                                  jobject buffer,
+                                                                                  jint offset,
+                                                                                  jint size,
+                                                                                  jlong presentationTimeUs,
+                                                                                  jboolean isKeyFrame) {
+    AvMuxerContext *context = getContext(handle);
+    AVStream *stream = context->formatContext->streams[trackIndex];
+    AVPacket *packet = context->packet;
+
+    // 数据会被muxer拷贝或者直接写出，这里不需要持有
+    packet->data = static_cast<uint8_t *>(env->GetDirectBufferAddress(buffer)) + offset;
+    packet->size = size;
+    packet->stream_index = trackIndex;
+    packet->pts = av_rescale_q(presentationTimeUs, US_TIME_BASE, stream->time_base);
+    packet->dts = packet->pts;
+    packet->flags = isKeyFrame ? AV_PKT_FLAG_KEY : 0;
+    packet->duration = 0;
+    packet->pos = -1;
+    int ret = av_write_frame(context->formatContext, packet);
+    packet->data = nullptr;
+    packet->size = 0;
+    return ret;
+}
+
+extern "C"
+JNIEXPORT jint JNICALL Java_com_winom_multimedia_utils_JniEntry_avMuxerFlush(JNIEnv *__unused env,
+                                                                            jclass __unused obj,
+                                                                            jlong handle) {
+    AvMuxerContext *context = getContext(handle);
+
+    // 传入空包让muxer写出缓存的数据，mp4的frag_custom模式下表示结束当前分片
+    int ret = av_write_frame(context->formatContext, nullptr);
+    if (ret < 0) {
+        return ret;
+    }
+    if (context->formatContext->pb != nullptr) {
+        avio_flush(context->formatContext->pb);
+    }
+    return 0;
+}
+
+extern "C"
+JNIEXPORT jstring JNICALL Java_com_winom_multimedia_utils_JniEntry_avMuxerPollClosedFile(JNIEnv *env,
+                                                                                        jclass __unused obj,
+                                                                                        jlong handle) {
+    AvMuxerContext *context = getContext(handle);
+    if (context->closedFiles.empty()) {
+        return nullptr;
+    }
+
+    jstring url = env->NewStringUTF(context->closedFiles.front().c_str());
+    context->closedFiles.pop_front();
+    return url;
+}
+
+extern "C"
+JNIEXPORT jint JNICALL Java_com_winom_multimedia_utils_JniEntry_avMuxerWriteTrailer(JNIEnv *__unused env,
+                                                                                   jclass __unused obj,
+                                                                                   jlong handle) {
+    AvMuxerContext *context = getContext(handle);
+    if (!context->isHeaderWritten) {
+        return 0;
+    }
+
+    context->isHeaderWritten = false;
+    return av_write_trailer(context->formatContext);
+}
+
+extern "C"
+JNIEXPORT jint JNICALL Java_com_winom_multimedia_utils_JniEntry_avMuxerClose(JNIEnv *__unused env,
+                                                                            jclass __unused obj,
+                                                                            jlong handle) {
+    AvMuxerContext *context = getContext(handle);
+
+    // 异常结束时没有调用过avMuxerWriteTrailer，也尽量把已经写入的数据保存下来
+    int ret = 0;
+    if (context->isHeaderWritten) {
+        ret = av_write_trailer(context->formatContext);
+    }
+    if (!(context->formatContext->oformat->flags & AVFMT_NOFILE)) {
+        avio_closep(&context->formatContext->pb);
+    }
+    avformat_free_context(context->formatContext);
+    av_packet_free(&context->packet);
+    delete context;
+    return ret;
+}
@@ -0,0 +1,103 @@
+#include <jni.h>
+#include <cstdint>
+#include <cstdlib>
+#include <cstring>
+
+extern "C" {
+#include <lame.h>
+}
+
+#ifndef __unused
+#define __unused __attribute__((unused))
+#endif
+
+static lame_t getLame(jlong handle) {
+    return reinterpret_cast<lame_t>(handle);
+}
+
+extern "C"
+JNIEXPORT jlong JNICALL Java_com_winom_multimedia_utils_JniEntry_lameOpen(JNIEnv *__unused env,
+                                                                         jclass __unused obj,
+                                                                         jint sampleRate,
+                                                                         jint channelCount,
+                                                                         jint bitRateKbps,
+                                                                         jboolean vbr,
+                                                                         jint vbrQuality,
+                                                                         jint quality) {
+    lame_t lame = lame_init();
+    if (lame == nullptr) {
+        return 0;
+    }
+
+    lame_set_in_samplerate(lame, sampleRate);
+    lame_set_num_channels(lame, channelCount);
+    lame_set_mode(lame, channelCount == 1 ? MONO : JOINT_STEREO);
+    lame_set_quality(lame, quality);
+
+    if (vbr) {
+        lame_set_VBR(lame, vbr_default);
+        lame_set_VBR_quality(lame, (float) vbrQuality);
+    } else {
+        lame_set_VBR(lame, vbr_off);
+        lame_set_brate(lame, bitRateKbps);
+    }
+
+    // 开头先写一个占位的Xing帧，结束后通过lameGetTagFrame取出内容覆盖，播放器才能正确得到VBR文件的时长
+    lame_set_bWriteVbrTag(lame, 1);
+
+    if (lame_init_params(lame) < 0) {
+        lame_close(lame);
+        return 0;
+    }
+    return reinterpret_cast<jlong>(lame);
+}
+
+extern "C"
+JNIEXPORT jint JNICALL Java_com_winom_multimedia_utils_JniEntry_lameEncode(JNIEnv *env,
+                                                                          jclass __unused obj,
+                                                                          jlong handle,
+                                                                          jobject pcmBuf,
+                                                                          jint offset,
+                                                                          jint size,
+                                                                          jobject outBuf) {
+    lame_t lame = getLame(handle);
+    auto *pPcm = reinterpret_cast<short *>(static_cast<uint8_t *>(env->GetDirectBufferAddress(pcmBuf)) + offset);
+    auto *pOut = static_cast<uint8_t *>(env->GetDirectBufferAddress(outBuf));
+    auto outSize = (int) env->GetDirectBufferCapacity(outBuf);
+
+    // 输入为16位交错的PCM
+    int channelCount = lame_get_num_channels(lame);
+    int samplesPerChannel = size / (int) sizeof(short) / channelCount;
+    if (channelCount == 1) {
+        return lame_encode_buffer(lame, pPcm, pPcm, samplesPerChannel, pOut, outSize);
+    }
+    return lame_encode_buffer_interleaved(lame, pPcm, samplesPerChannel, pOut, outSize);
+}
+
+extern "C"
+JNIEXPORT jint JNICALL Java_com_winom_multimedia_utils_JniEntry_lameFlush(JNIEnv *env,
+                                                                         jclass __unused obj,
+                                                                         jlong handle,
+                                                                         jobject outBuf) {
+    auto *pOut = static_cast<uint8_t *>(env->GetDirectBufferAddress(outBuf));
+    auto outSize = (int) env->GetDirectBufferCapacity(outBuf);
+    return lame_encode_flush(getLame(handle), pOut, outSize);
+}
+
+extern "C"
+JNIEXPORT jint JNICALL Java_com_winom_multimedia_utils_JniEntry_lameGetTagFrame(JNIEnv *env,
+                                                                               jclass __unused obj,
+                                                                               jlong handle,
+                                                                               jobject outBuf) {
+    auto *pOut = static_cast<uint8_t *>(env->GetDirectBufferAddress(outBuf));
+    auto outSize = (size_t) env->GetDirectBufferCapacity(outBuf);
+    size_t tagSize = lame_get_lametag_frame(getLame(handle), pOut, outSize);
+    return tagSize > outSize ? -1 : (jint) tagSize;
+}
+
+extern "C"
+JNIEXPORT void JNICALL Java_com_winom_multimedia_utils_JniEntry_lameClose(JNIEnv *__unused env,
+                                                                         jclass __unused obj,
+                                                                         jlong handle) {
+    lame_close(getLame(handle));
+}
@@ -1,7 +1,13 @@
 #include <jni.h>
+#include <cstdint>
 #include <cstdlib>
 #include <cstring>
 
+// __unused是bionic中定义的，在开发机上编译时需要自己定义
+#ifndef __unused
+#define __unused __attribute__((unused))
+#endif
+
 extern "C"
 JNIEXPORT void JNICALL Java_com_winom_multimedia_utils_JniEntry_byteBufferCopy(JNIEnv *env,
                                                                                jclass __unused obj,
@@ -13,3 +19,15 @@ JNIEXPORT void JNICALL Java_com_winom_multimedia_utils_JniEntry_byteBufferCopy(J
     memcpy(pDstBuf, pSrcBuf, (size_t) size);
 }
 
+extern "C"
+JNIEXPORT void JNICALL Java_com_winom_multimedia_utils_JniEntry_byteBufferCopyWithOffset(JNIEnv *env,
+                                                                                         jclass __unused obj,
+                                                                                         jobject srcBuf,
+                                                                                         jint srcOffset,
+                                                                                         jobject dstBuf,
+                                                                                         jint dstOffset,
+                                                                                         jint size) {
+    auto *pSrcBuf = static_cast<uint8_t *>(env->GetDirectBufferAddress(srcBuf));
+    auto *pDstBuf = static_cast<uint8_t *>(env->GetDirectBufferAddress(dstBuf));
+    memcpy(pDstBuf + dstOffset, pSrcBuf + srcOffset, (size_t) size);
+}
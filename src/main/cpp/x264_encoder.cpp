@@ -0,0 +1,217 @@
+#include <jni.h>
+#include <cstdint>
+#include <cstdlib>
+#include <cstring>
+
+extern "C" {
+#include <x264.h>
+}
+
+#ifndef __unused
+#define __unused __attribute__((unused))
+#endif
+
+// 一个x264编码器实例，输入固定为I420
+struct X264Context {
+    x264_t *encoder;
+    x264_picture_t picIn;
+    x264_picture_t picOut;
+    int width;
+    int height;
+};
+
+static X264Context *getContext(jlong handle) {
+    return reinterpret_cast<X264Context *>(handle);
+}
+
+extern "C"
+JNIEXPORT jlong JNICALL Java_com_winom_multimedia_utils_JniEntry_x264Open(JNIEnv *env,
+                                                                         jclass __unused obj,
+                                                                         jint width,
+                                                                         jint height,
+                                                                         jint frameRate,
+                                                                         jint bitRateKbps,
+                                                                         jint crf,
+                                                                         jint keyFrameInterval,
+                                                                         jstring preset,
+                                                                         jstring tune,
+                                                                         jint threadCount,
+                                                                         jboolean slicedThreads) {
+    // preset、tune为null时使用x264的默认值
+    const char *presetStr = preset != nullptr ? env->GetStringUTFChars(preset, nullptr) : nullptr;
+    const char *tuneStr = tune != nullptr ? env->GetStringUTFChars(tune, nullptr) : nullptr;
+
+    x264_param_t param;
+    int ret = x264_param_default_preset(&param, presetStr, tuneStr);
+    if (presetStr != nullptr) {
+        env->ReleaseStringUTFChars(preset, presetStr);
+    }
+    if (tuneStr != nullptr) {
+        env->ReleaseStringUTFChars(tune, tuneStr);
+    }
+    if (ret < 0) {
+        return 0;
+    }
+
+    param.i_csp = X264_CSP_I420;
+    param.i_width = width;
+    param.i_height = height;
+    param.i_fps_num = (uint32_t) frameRate;
+    param.i_fps_den = 1;
+
+    // 时间戳直接使用微秒
+    param.b_vfr_input = 1;
+    param.i_timebase_num = 1;
+    param.i_timebase_den = 1000000;
+
+    // 和MediaFormat.KEY_I_FRAME_INTERVAL一致：0表示每帧都是关键帧，负数表示只有第一帧是关键帧
+    if (keyFrameInterval > 0) {
+        int keyint = keyFrameInterval * frameRate;
+        param.i_keyint_max = keyint > 0 ? keyint : 1;
+    } else if (keyFrameInterval == 0) {
+        param.i_keyint_max = 1;
+    } else {
+        param.i_keyint_max = X264_KEYINT_MAX_INFINITE;
+    }
+
+    // Muxer要求同一轨道的时间戳递增，不使用B帧
+    param.i_bframe = 0;
+
+    // SPS、PPS单独通过x264Headers获取，放到MediaFormat的csd-0和csd-1中
+    param.b_repeat_headers = 0;
+    param.b_annexb = 1;
+
+    param.i_threads = threadCount > 0 ? threadCount : X264_THREADS_AUTO;
+    param.b_sliced_threads = slicedThreads ? 1 : 0;
+    param.i_log_level = X264_LOG_WARNING;
+
+    if (crf > 0) {
+        param.rc.i_rc_method = X264_RC_CRF;
+        param.rc.f_rf_constant = crf;
+    } else {
+        param.rc.i_rc_method = X264_RC_ABR;
+        param.rc.i_bitrate = bitRateKbps;
+        param.rc.i_vbv_max_bitrate = bitRateKbps;
+        param.rc.i_vbv_buffer_size = bitRateKbps;
+    }
+
+    if (x264_param_apply_profile(&param, "high") < 0) {
+        return 0;
+    }
+
+    x264_t *encoder = x264_encoder_open(&param);
+    if (encoder == nullptr) {
+        return 0;
+    }
+
+    auto *context = new X264Context();
+    context->encoder = encoder;
+    context->width = width;
+    context->height = height;
+    x264_picture_init(&context->picIn);
+    context->picIn.img.i_csp = X264_CSP_I420;
+    context->picIn.img.i_plane = 3;
+    context->picIn.img.i_stride[0] = width;
+    context->picIn.img.i_stride[1] = width / 2;
+    context->picIn.img.i_stride[2] = width / 2;
+    return reinterpret_cast<jlong>(context);
+}
+
+extern "C"
+JNIEXPORT jint JNICALL Java_com_winom_multimedia_utils_JniEntry_x264Headers(JNIEnv *env,
+                                                                           jclass __unused obj,
+                                                                           jlong handle,
+                                                                           jobject outBuf,
+                                                                           jintArray nalSizes) {
+    X264Context *context = getContext(handle);
+    x264_nal_t *nals;
+    int nalCount;
+    if (x264_encoder_headers(context->encoder, &nals, &nalCount) < 0) {
+        return -1;
+    }
+
+    auto *pOut = static_cast<uint8_t *>(env->GetDirectBufferAddress(outBuf));
+    jlong capacity = env->GetDirectBufferCapacity(outBuf);
+    jint sizes[2] = {0, 0};
+    int offset = 0;
+
+    // 只需要SPS和PPS，按这个顺序写入
+    const int types[2] = {NAL_SPS, NAL_PPS};
+    for (int type : types) {
+        for (int i = 0; i < nalCount; ++i) {
+            if (nals[i].i_type != type) {
+                continue;
+            }
+            if (offset + nals[i].i_payload > capacity) {
+                return -2;
+            }
+            memcpy(pOut + offset, nals[i].p_payload, (size_t) nals[i].i_payload);
+            offset += nals[i].i_payload;
+            sizes[type == NAL_SPS ? 0 : 1] = nals[i].i_payload;
+            break;
+        }
+    }
+
+    env->SetIntArrayRegion(nalSizes, 0, 2, sizes);
+    return offset;
+}
+
+extern "C"
+JNIEXPORT jint JNICALL Java_com_winom_multimedia_utils_JniEntry_x264Encode(JNIEnv *env,
+                                                                          jclass __unused obj,
+                                                                          jlong handle,
+                                                                          jobject inBuf,
+                                                                          jint inOffset,
+                                                                          jlong presentationTimeUs,
+                                                                          jboolean forceKeyFrame,
+                                                                          jobject outBuf,
+                                                                          jlongArray outInfo) {
+    X264Context *context = getContext(handle);
+    x264_picture_t *picIn = nullptr;
+
+    // inBuf为null时表示输入已经结束，取出编码器中还缓存着的帧
+    if (inBuf != nullptr) {
+        auto *pIn = static_cast<uint8_t *>(env->GetDirectBufferAddress(inBuf)) + inOffset;
+        int lumaSize = context->width * context->height;
+        picIn = &context->picIn;
+        picIn->img.plane[0] = pIn;
+        picIn->img.plane[1] = pIn + lumaSize;
+        picIn->img.plane[2] = pIn + lumaSize + lumaSize / 4;
+        picIn->i_pts = presentationTimeUs;
+        picIn->i_type = forceKeyFrame ? X264_TYPE_IDR : X264_TYPE_AUTO;
+    }
+
+    x264_nal_t *nals;
+    int nalCount;
+    int frameSize = x264_encoder_encode(context->encoder, &nals, &nalCount, picIn, &context->picOut);
+    if (frameSize <= 0) {
+        return frameSize;
+    }
+
+    // 同一帧所有NAL的数据在内存中是连续的，一次拷贝
+    if (frameSize > env->GetDirectBufferCapacity(outBuf)) {
+        return -2;
+    }
+    auto *pOut = static_cast<uint8_t *>(env->GetDirectBufferAddress(outBuf));
+    memcpy(pOut, nals[0].p_payload, (size_t) frameSize);
+
+    jlong info[3] = {context->picOut.i_pts, context->picOut.i_dts, context->picOut.b_keyframe};
+    env->SetLongArrayRegion(outInfo, 0, 3, info);
+    return frameSize;
+}
+
+extern "C"
+JNIEXPORT jint JNICALL Java_com_winom_multimedia_utils_JniEntry_x264DelayedFrames(JNIEnv *__unused env,
+                                                                                 jclass __unused obj,
+                                                                                 jlong handle) {
+    return x264_encoder_delayed_frames(getContext(handle)->encoder);
+}
+
+extern "C"
+JNIEXPORT void JNICALL Java_com_winom_multimedia_utils_JniEntry_x264Close(JNIEnv *__unused env,
+                                                                         jclass __unused obj,
+                                                                         jlong handle) {
+    X264Context *context = getContext(handle);
+    x264_encoder_close(context->encoder);
+    delete context;
+}
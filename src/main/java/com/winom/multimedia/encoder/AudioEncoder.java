@@ -17,6 +17,7 @@ public class AudioEncoder extends Encoder {
         MediaFormat mediaFormat = MediaFormat.createAudioFormat(MIME_TYPE, sampleRate, channelCnt);
         mediaFormat.setInteger(MediaFormat.KEY_BIT_RATE, bitRate);
         mediaFormat.setInteger(MediaFormat.KEY_AAC_PROFILE, MediaCodecInfo.CodecProfileLevel.AACObjectLC);
+        selectCodec(mediaFormat, 0);
         return mediaFormat;
     }
 }
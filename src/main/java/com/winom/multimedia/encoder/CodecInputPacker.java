@@ -0,0 +1,149 @@
+package com.winom.multimedia.encoder;
+
+import com.winom.multimedia.source.Frame;
+import com.winom.multimedia.utils.JniEntry;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>把上游的帧拷贝到codec的输入buffer中，只维护拷贝的状态，不操作codec</p>
+ * PCM数据可以拆分、合并：一帧放不下时拆到多个输入buffer中，几个小帧可以合并到一个输入buffer中，
+ * 时间戳按照字节数来推算。拆分时按所有声道的一个采样对齐，上游的时间戳不连续时不合并。其他数据一帧对应一个输入buffer。
+ */
+class CodecInputPacker {
+    /**
+     * 合并PCM时，新的上游帧的时间戳和按字节数推算的时间戳相差超过该值，认为中间有空隙，重新开始一个输入buffer
+     */
+    private final static long PCM_PTS_GAP_THRESHOLD_US = 1000;
+
+    /**
+     * 输入为16位PCM时每秒的字节数以及所有声道一个采样的字节数，其他格式为0
+     */
+    private final long mPcmBytesPerSecond;
+    private final int mPcmFrameBytes;
+
+    /**
+     * 正在拷贝的上游帧以及拷贝到的位置，正在填充的codec输入buffer以及其中第一个字节的时间戳
+     */
+    private Frame mPendingFrame;
+    private int mPendingFrameOffset;
+    private ByteBuffer mInputBuffer;
+    private int mInputBufferFilled;
+    private long mInputBufferPts;
+
+    CodecInputPacker(long pcmBytesPerSecond, int pcmFrameBytes) {
+        mPcmBytesPerSecond = pcmBytesPerSecond;
+        mPcmFrameBytes = pcmFrameBytes;
+    }
+
+    boolean isPcm() {
+        return mPcmBytesPerSecond > 0;
+    }
+
+    boolean hasInputBuffer() {
+        return mInputBuffer != null;
+    }
+
+    /**
+     * 开始填充一个新的codec输入buffer
+     */
+    void setInputBuffer(ByteBuffer inputBuffer) {
+        mInputBuffer = inputBuffer;
+        mInputBuffer.clear();
+        mInputBufferFilled = 0;
+    }
+
+    /**
+     * 输入buffer已经提交给codec
+     */
+    void resetInputBuffer() {
+        mInputBuffer = null;
+        mInputBufferFilled = 0;
+    }
+
+    int getInputBufferFilled() {
+        return mInputBufferFilled;
+    }
+
+    long getInputBufferPts() {
+        return mInputBufferPts;
+    }
+
+    /**
+     * 剩余的空间已经放不下一个采样，需要提交
+     */
+    boolean isInputBufferFull() {
+        return mInputBuffer.capacity() - mInputBufferFilled < mPcmFrameBytes;
+    }
+
+    boolean hasPendingFrame() {
+        return mPendingFrame != null;
+    }
+
+    Frame getPendingFrame() {
+        return mPendingFrame;
+    }
+
+    /**
+     * 开始拷贝一个新的上游帧
+     * @return false表示和正在填充的输入buffer时间戳不连续，需要先提交已经合并的数据
+     */
+    boolean setPendingFrame(Frame frame) {
+        mPendingFrame = frame;
+        mPendingFrameOffset = 0;
+        // 合并后的时间戳是按字节数推算的，不能跨过空隙
+        return mInputBufferFilled == 0 || frame.size == 0 || !hasPtsGap(frame);
+    }
+
+    /**
+     * 把上游帧剩余的数据尽可能多的拷贝到输入buffer中，拷贝完后不再持有该帧
+     * @return false表示输入buffer剩余的空间放不下一个采样，需要先提交
+     */
+    boolean copyPendingFrame() {
+        Frame frame = mPendingFrame;
+        int remaining = frame.size - mPendingFrameOffset;
+        int space = mInputBuffer.capacity() - mInputBufferFilled;
+        if (remaining > space && !isPcm()) {
+            throw new RuntimeException("frame size " + frame.size + " exceeds codec input buffer " + space);
+        }
+
+        int copySize = Math.min(remaining, space);
+        if (copySize < remaining) {
+            // 不能把一个采样或者一组交错的多声道采样拆到两个输入buffer中
+            copySize -= copySize % mPcmFrameBytes;
+            if (copySize == 0) {
+                if (mInputBufferFilled == 0) {
+                    throw new RuntimeException("codec input buffer " + space + " is smaller than a pcm frame");
+                }
+                return false;
+            }
+        }
+        if (mInputBufferFilled == 0) {
+            mInputBufferPts = frame.presentationTimeUs + bytesToUs(mPendingFrameOffset);
+        }
+        if (copySize > 0) {
+            JniEntry.byteBufferCopyWithOffset(frame.buffer, frame.offset + mPendingFrameOffset, mInputBuffer,
+                    mInputBufferFilled, copySize);
+        }
+        mInputBufferFilled += copySize;
+        mPendingFrameOffset += copySize;
+
+        if (mPendingFrameOffset >= frame.size) {
+            mPendingFrame = null;
+        }
+        return true;
+    }
+
+    private long bytesToUs(long byteCount) {
+        return isPcm() ? byteCount * TimeUnit.SECONDS.toMicros(1) / mPcmBytesPerSecond : 0;
+    }
+
+    /**
+     * 上游帧的时间戳和正在填充的输入buffer按字节数推算出的下一个时间戳是否对不上
+     */
+    private boolean hasPtsGap(Frame frame) {
+        long expectedPts = mInputBufferPts + bytesToUs(mInputBufferFilled);
+        return Math.abs(frame.presentationTimeUs - expectedPts) > PCM_PTS_GAP_THRESHOLD_US;
+    }
+}
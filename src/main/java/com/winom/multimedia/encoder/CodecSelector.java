@@ -0,0 +1,268 @@
+package com.winom.multimedia.encoder;
+
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaCodecList;
+import android.os.Build;
+import android.util.Range;
+
+import com.winom.multimedia.utils.MeLog;
+import com.winom.multimedia.utils.MediaUtils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * <p>选择最合适的编码器</p>
+ * {@link android.media.MediaCodec#createEncoderByType}只会使用系统列出的第一个编码器，经常是很慢的软件编码器。
+ * 这里遍历{@link MediaCodecList}，按照是否硬件加速、实测的帧率、最大实例个数给编码器排序，选出最好的一个。
+ * 遍历比较耗时，结果会缓存在内存中，设置了{@link #setCacheFile}后还会保存到文件中，系统版本（build fingerprint）
+ * 不变时，下次启动直接使用，不需要重新遍历。
+ */
+public final class CodecSelector {
+    private static final String TAG = "CodecSelector";
+    private static final String KEY_FINGERPRINT = "fingerprint";
+
+    /**
+     * 用这个分辨率下可以达到的帧率来比较编码器的速度
+     */
+    private static final int PROBE_WIDTH = 1280;
+    private static final int PROBE_HEIGHT = 720;
+
+    private static final Properties sSelectedCodecs = new Properties();
+    private static File sCacheFile;
+    private static boolean sIsCacheLoaded = false;
+
+    private CodecSelector() {
+    }
+
+    /**
+     * 设置保存选择结果的文件，比如应用的files目录下的文件，需要在第一次选择之前调用
+     */
+    synchronized public static void setCacheFile(File cacheFile) {
+        sCacheFile = cacheFile;
+        sIsCacheLoaded = false;
+    }
+
+    /**
+     * 选择编码器
+     * @param colorFormat 输入需要支持的颜色格式，比如
+     *                    {@link MediaCodecInfo.CodecCapabilities#COLOR_FormatSurface}，音频传0
+     * @return 编码器的名字，没有支持的编码器返回null
+     */
+    synchronized public static String selectEncoder(String mimeType, int colorFormat) {
+        loadCacheIfNeeded();
+
+        String key = mimeType + "/" + colorFormat;
+        String codecName = sSelectedCodecs.getProperty(key);
+        if (codecName != null) {
+            return codecName.isEmpty() ? null : codecName;
+        }
+
+        long startTime = System.currentTimeMillis();
+        codecName = probeEncoder(mimeType, colorFormat);
+        MeLog.i(TAG, "probe encoder for [%s], result: %s, cost: %d", key, codecName,
+                System.currentTimeMillis() - startTime);
+
+        // 没有找到也要记下来，避免每次都遍历
+        sSelectedCodecs.setProperty(key, codecName == null ? "" : codecName);
+        saveCache();
+        return codecName;
+    }
+
+    /**
+     * 清除选择结果，比如编码器按照选择结果创建失败的时候
+     */
+    synchronized public static void clearCache() {
+        sSelectedCodecs.clear();
+        if (sCacheFile != null && !sCacheFile.delete()) {
+            MeLog.w(TAG, "delete codec cache failed: %s", sCacheFile);
+        }
+    }
+
+    /**
+     * 按名字创建编码器，失败时清除选择结果：名字可能是之前缓存下来的、已经失效了，不清除的话每次启动都会失败
+     */
+    static MediaCodec createByCodecName(String codecName) throws IOException {
+        try {
+            return MediaCodec.createByCodecName(codecName);
+        } catch (IOException | IllegalArgumentException e) {
+            MeLog.w(TAG, "create codec %s failed, clear codec cache", codecName);
+            clearCache();
+            throw e;
+        }
+    }
+
+    private static String probeEncoder(String mimeType, int colorFormat) {
+        List<Candidate> candidates = new ArrayList<>();
+        int codecCount = MediaCodecList.getCodecCount();
+        for (int i = 0; i < codecCount; ++i) {
+            MediaCodecInfo codecInfo = MediaCodecList.getCodecInfoAt(i);
+            if (!codecInfo.isEncoder() || !isTypeSupported(codecInfo, mimeType)) {
+                continue;
+            }
+
+            Candidate candidate = probeCandidate(codecInfo, mimeType, colorFormat);
+            if (candidate != null) {
+                MeLog.i(TAG, "candidate %s, hardware: %b, fps: %.1f, max instances: %d", candidate.mName,
+                        candidate.mIsHardware, candidate.mFrameRate, candidate.mMaxInstances);
+                candidates.add(candidate);
+            }
+        }
+
+        Candidate best = null;
+        for (Candidate candidate : candidates) {
+            if (best == null || candidate.isBetterThan(best)) {
+                best = candidate;
+            }
+        }
+        return best == null ? null : best.mName;
+    }
+
+    private static Candidate probeCandidate(MediaCodecInfo codecInfo, String mimeType, int colorFormat) {
+        MediaCodecInfo.CodecCapabilities capabilities;
+        try {
+            capabilities = codecInfo.getCapabilitiesForType(mimeType);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+
+        if (colorFormat != 0 && !isColorFormatSupported(capabilities, colorFormat)) {
+            return null;
+        }
+
+        Candidate candidate = new Candidate(codecInfo.getName());
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            candidate.mIsHardware = codecInfo.isHardwareAccelerated();
+        } else {
+            candidate.mIsHardware = !isSoftwareCodecName(candidate.mName);
+        }
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            candidate.mMaxInstances = capabilities.getMaxSupportedInstances();
+
+            // 厂商在media_codecs_performance.xml中提供的实测帧率
+            MediaCodecInfo.VideoCapabilities videoCapabilities = capabilities.getVideoCapabilities();
+            if (videoCapabilities != null) {
+                try {
+                    Range<Double> frameRates = videoCapabilities.getAchievableFrameRatesFor(PROBE_WIDTH,
+                            PROBE_HEIGHT);
+                    if (frameRates != null) {
+                        candidate.mFrameRate = frameRates.getUpper();
+                    }
+                } catch (IllegalArgumentException e) {
+                    MeLog.i(TAG, "%s doesn't support %dx%d", candidate.mName, PROBE_WIDTH, PROBE_HEIGHT);
+                }
+            }
+        }
+        return candidate;
+    }
+
+    private static boolean isTypeSupported(MediaCodecInfo codecInfo, String mimeType) {
+        for (String type : codecInfo.getSupportedTypes()) {
+            if (type.equalsIgnoreCase(mimeType)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isColorFormatSupported(MediaCodecInfo.CodecCapabilities capabilities, int colorFormat) {
+        for (int format : capabilities.colorFormats) {
+            if (format == colorFormat) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Android 10以下没有接口判断，按照AOSP软件编码器的命名规则来判断
+     */
+    private static boolean isSoftwareCodecName(String name) {
+        String lowerName = name.toLowerCase();
+        return lowerName.startsWith("omx.google.") || lowerName.startsWith("c2.android.")
+                || lowerName.startsWith("omx.ffmpeg.") || lowerName.contains(".sw.");
+    }
+
+    private static void loadCacheIfNeeded() {
+        if (sIsCacheLoaded) {
+            return;
+        }
+        sIsCacheLoaded = true;
+
+        if (sCacheFile == null || !sCacheFile.exists()) {
+            return;
+        }
+
+        Properties properties = new Properties();
+        FileInputStream inputStream = null;
+        try {
+            inputStream = new FileInputStream(sCacheFile);
+            properties.load(inputStream);
+        } catch (IOException e) {
+            MeLog.w(TAG, "load codec cache failed: %s", e.getMessage());
+            return;
+        } finally {
+            MediaUtils.closeQuietly(inputStream);
+        }
+
+        // 系统升级后编码器可能变了，需要重新选择
+        if (!Build.FINGERPRINT.equals(properties.getProperty(KEY_FINGERPRINT))) {
+            MeLog.i(TAG, "fingerprint changed, ignore codec cache");
+            return;
+        }
+        properties.remove(KEY_FINGERPRINT);
+        sSelectedCodecs.putAll(properties);
+        MeLog.i(TAG, "loaded codec cache: %s", sSelectedCodecs);
+    }
+
+    private static void saveCache() {
+        if (sCacheFile == null) {
+            return;
+        }
+
+        Properties properties = new Properties();
+        properties.putAll(sSelectedCodecs);
+        properties.setProperty(KEY_FINGERPRINT, Build.FINGERPRINT);
+
+        FileOutputStream outputStream = null;
+        try {
+            outputStream = new FileOutputStream(sCacheFile);
+            properties.store(outputStream, null);
+        } catch (IOException e) {
+            MeLog.w(TAG, "save codec cache failed: %s", e.getMessage());
+        } finally {
+            MediaUtils.closeQuietly(outputStream);
+        }
+    }
+
+    private static class Candidate {
+        private final String mName;
+        private boolean mIsHardware;
+        private double mFrameRate = 0;
+        private int mMaxInstances = 0;
+
+        private Candidate(String name) {
+            mName = name;
+        }
+
+        /**
+         * 硬件优先，其次实测帧率高的，再次能同时创建更多实例的，都一样时使用系统列出的顺序
+         */
+        private boolean isBetterThan(Candidate other) {
+            if (mIsHardware != other.mIsHardware) {
+                return mIsHardware;
+            }
+            if (mFrameRate != other.mFrameRate) {
+                return mFrameRate > other.mFrameRate;
+            }
+            return mMaxInstances > other.mMaxInstances;
+        }
+    }
+}
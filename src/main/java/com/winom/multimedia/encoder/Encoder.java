@@ -3,25 +3,52 @@ package com.winom.multimedia.encoder;
 import android.media.MediaCodec;
 import android.media.MediaFormat;
 import android.os.Build;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.view.Surface;
 
 import com.winom.multimedia.exceptions.ProcessException;
 import com.winom.multimedia.exceptions.SetupException;
+import com.winom.multimedia.pipeline.BufferLender;
+import com.winom.multimedia.pipeline.BufferSink;
 import com.winom.multimedia.pipeline.ProvidedStage;
 import com.winom.multimedia.pipeline.Provider;
 import com.winom.multimedia.source.Frame;
 import com.winom.multimedia.utils.FutureObject;
 import com.winom.multimedia.utils.JniEntry;
+import com.winom.multimedia.utils.MediaConstants;
 import com.winom.multimedia.utils.MeLog;
 import com.winom.multimedia.utils.MediaUtils;
+import com.winom.multimedia.utils.PipelineTracer;
+import com.winom.multimedia.utils.SpscRingQueue;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
 import java.util.List;
+import java.util.Queue;
+
+import androidx.annotation.NonNull;
 
 public abstract class Encoder extends ProvidedStage<Frame> {
     private final static String TAG = "Encoder";
 
+    /**
+     * MediaFormat中指定使用哪个编码器，一般是{@link CodecSelector#selectEncoder}的结果，没有则使用系统默认的编码器
+     */
+    public final static String KEY_CODEC_NAME = "winom-codec-name";
+
+    /**
+     * 回调模式下缓存codec通知的buffer索引的队列长度，需要大于codec的buffer个数
+     */
+    private final static int CALLBACK_QUEUE_CAPACITY = 64;
+
+    /**
+     * 每一轮processFrame默认最多喂给codec、从codec取出的帧数
+     */
+    private final static int DEFAULT_MAX_FRAMES_PER_TICK = 16;
+
     private final boolean mUseInputSurface;
     private final MediaFormat mMediaFormat;
     private final Provider<Frame> mRawFramesProvider;
@@ -29,9 +56,55 @@ public abstract class Encoder extends ProvidedStage<Frame> {
     private final FutureObject<Surface> mFutureInputSurface = new FutureObject<>();
     private final FutureObject<MediaFormat> mFutureOutputFormat = new FutureObject<>();
 
+    /**
+     * 已经归还回来的Frame，下次输出数据时重复使用
+     */
+    private final Queue<Frame> mFreeFrames = new ArrayDeque<>();
+
     private int mInputBufferIndex = -1;
     private MediaCodec mMediaCodec;
 
+    /**
+     * 拆分、合并输入数据的状态
+     */
+    private final CodecInputPacker mInputPacker;
+    private int mMaxFramesPerTick = DEFAULT_MAX_FRAMES_PER_TICK;
+
+    /**
+     * Android 5.0以下只能通过getInputBuffers获取输入buffer，setup后缓存起来，不用每帧都获取
+     */
+    private ByteBuffer[] mInputBuffers;
+
+    /**
+     * 借出codec输入buffer的模式：上游直接把数据写到codec的输入buffer中，不需要拷贝
+     */
+    private BufferLender<Frame> mInputLender;
+    private final Queue<Frame> mFreeInputFrames = new ArrayDeque<>();
+    private boolean mIsInputEnd = false;
+
+    /**
+     * 回调模式：codec通过{@link MediaCodec.Callback}通知可用的输入、输出buffer，不需要轮询
+     */
+    private boolean mUseCodecCallback = false;
+    private HandlerThread mCallbackThread;
+    /**
+     * 回调线程中发生的错误：codec报告的错误，或者队列溢出，由Stage线程在processFrame中抛出
+     */
+    private volatile RuntimeException mCodecError;
+
+    /**
+     * 是否从{@link MediaCodecPool}中获取codec，用完后放回去
+     */
+    private boolean mUseCodecPool = false;
+
+    /**
+     * 回调线程写入、Stage线程读取的输入buffer索引，以及输出buffer事件，
+     * 处理完的输出事件通过{@link #mFreeOutputEvents}还给回调线程重复使用
+     */
+    private SpscRingQueue<Integer> mAvailableInputIndexes;
+    private SpscRingQueue<OutputEvent> mAvailableOutputEvents;
+    private SpscRingQueue<OutputEvent> mFreeOutputEvents;
+
     public Encoder(MediaFormat mediaFormat, Provider<Frame> provider) {
         this(false, mediaFormat, provider);
     }
@@ -41,32 +114,134 @@ public abstract class Encoder extends ProvidedStage<Frame> {
         mMediaFormat = mediaFormat;
         mRawFramesProvider = provider;
         mBufferInfo = new MediaCodec.BufferInfo();
+        mInputPacker = new CodecInputPacker(getPcmBytesPerSecond(mediaFormat), getPcmFrameBytes(mediaFormat));
+    }
+
+    /**
+     * <p>获取直接写入codec输入buffer的接收者，调用之后编码器不再从构造时传入的provider读取数据</p>
+     * 上游通过{@link BufferSink#dequeueInputBuffer()}拿到的Frame中，buffer为codec的输入buffer，
+     * 从position 0开始写入，写好后设置size、presentationTimeUs和flags再提交，结束时提交带EOS标记的Frame。
+     * 需要在setup之前调用。
+     */
+    public BufferSink<Frame> getInputBufferSink() {
+        if (mInputLender != null) {
+            return mInputLender;
+        }
+
+        if (mState != State.INIT) {
+            throw new RuntimeException("only can lend input buffers in init state");
+        }
+        if (mUseInputSurface) {
+            throw new RuntimeException("can't lend input buffers when using input surface");
+        }
+        mInputLender = new BufferLender<>(this, mProcessedBuffers.capacity());
+        return mInputLender;
+    }
+
+    /**
+     * <p>设置每一轮processFrame最多喂给codec、从codec取出的帧数</p>
+     * 上限用来避免一个Stage长时间占着任务线程，离线转码时可以调大
+     */
+    public void setMaxFramesPerTick(int maxFramesPerTick) {
+        if (maxFramesPerTick <= 0) {
+            throw new IllegalArgumentException("max frames per tick must be positive: " + maxFramesPerTick);
+        }
+        mMaxFramesPerTick = maxFramesPerTick;
+    }
+
+    /**
+     * <p>使用MediaCodec的回调模式，codec一有输入或输出buffer就会唤醒该Stage，不需要轮询</p>
+     * 需要在setup之前调用，Android 6.0以下不支持，仍然使用轮询
+     */
+    public void setUseCodecCallback(boolean useCodecCallback) {
+        if (mState != State.INIT) {
+            throw new RuntimeException("only can set codec callback mode in init state");
+        }
+
+        if (useCodecCallback && Build.VERSION.SDK_INT < Build.VERSION_CODES.M) {
+            MeLog.w(TAG, "codec callback mode requires api 23, fallback to polling");
+            return;
+        }
+        mUseCodecCallback = useCodecCallback;
+    }
+
+    /**
+     * <p>从进程内共享的{@link MediaCodecPool}中获取codec，release时放回池中，连续录制时不需要每次都创建</p>
+     * 需要在setup之前调用
+     */
+    public void setUseCodecPool(boolean useCodecPool) {
+        if (mState != State.INIT) {
+            throw new RuntimeException("only can set codec pool in init state");
+        }
+        mUseCodecPool = useCodecPool;
     }
 
     @Override
     public void setup() throws SetupException {
         String mimeType = mMediaFormat.getString(MediaFormat.KEY_MIME);
-        MeLog.i(TAG, "updateExtractor encoder for [%s]", mimeType);
+        String codecName = mMediaFormat.containsKey(KEY_CODEC_NAME) ? mMediaFormat.getString(KEY_CODEC_NAME) : null;
+        MeLog.i(TAG, "updateExtractor encoder for [%s], codec: %s, callback mode: %b, codec pool: %b", mimeType,
+                codecName, mUseCodecCallback, mUseCodecPool);
         try {
-            mMediaCodec = MediaCodec.createEncoderByType(mimeType);
+            if (mUseCodecPool) {
+                mMediaCodec = MediaCodecPool.getInstance().acquireEncoder(mimeType, codecName);
+            } else if (codecName != null) {
+                mMediaCodec = CodecSelector.createByCodecName(codecName);
+            } else {
+                mMediaCodec = MediaCodec.createEncoderByType(mimeType);
+            }
+            if (mUseCodecCallback) {
+                setupCodecCallback();
+            }
             mMediaCodec.configure(mMediaFormat, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
             if (mUseInputSurface) {
                 mFutureInputSurface.setResult(mMediaCodec.createInputSurface());
                 MeLog.i(TAG, "created input surface");
             }
             mMediaCodec.start();
-        } catch (IOException e) {
+            if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP && !mUseInputSurface) {
+                mInputBuffers = mMediaCodec.getInputBuffers();
+            }
+        } catch (IOException | RuntimeException e) {
+            // configure、createInputSurface、start失败时codec已经创建好了（或者占用了codec池的名额），需要释放
+            releaseFailedCodec();
             throw new SetupException("updateExtractor MediaCodec for encoder failed.", e);
         }
 
         setState(State.SETUPED);
     }
 
+    /**
+     * setup失败时释放codec，此时codec的状态不确定，不放回codec池
+     */
+    private void releaseFailedCodec() {
+        if (mMediaCodec != null) {
+            if (mUseCodecPool) {
+                MediaCodecPool.getInstance().discard(mMediaCodec);
+            } else {
+                mMediaCodec.release();
+            }
+            mMediaCodec = null;
+        }
+
+        if (mCallbackThread != null) {
+            mCallbackThread.quitSafely();
+            mCallbackThread = null;
+        }
+    }
+
     @Override
     public void processFrame() throws ProcessException {
         super.processFrame();
+        if (mCodecError != null) {
+            throw new ProcessException("encoder error", mCodecError);
+        }
+
         if (mUseInputSurface) {
             checkForEos();
+        } else if (mInputLender != null) {
+            queueFilledInputBuffers();
+            lendInputBuffers();
         } else {
             feedDataToMediaCodec();
         }
@@ -77,10 +252,30 @@ public abstract class Encoder extends ProvidedStage<Frame> {
     public void release() {
         MeLog.i(TAG, "release encoder");
         if (mMediaCodec != null) {
-            mMediaCodec.stop();
-            mMediaCodec.release();
+            if (!mUseCodecPool) {
+                mMediaCodec.stop();
+                mMediaCodec.release();
+            } else if (mCodecError != null) {
+                // 出过错的codec不再复用
+                MediaCodecPool.getInstance().discard(mMediaCodec);
+            } else {
+                MediaCodecPool.getInstance().recycle(mMediaFormat.getString(MediaFormat.KEY_MIME), mMediaCodec);
+            }
             mMediaCodec = null;
         }
+
+        if (mCallbackThread != null) {
+            mCallbackThread.quitSafely();
+            mCallbackThread = null;
+        }
+    }
+
+    /**
+     * 同步模式下MediaCodec输出数据时无法主动通知，只能轮询
+     */
+    @Override
+    protected boolean isPollingRequired() {
+        return mMediaCodec != null && !mUseCodecCallback;
     }
 
     public FutureObject<Surface> getFutureInputSurface() {
@@ -91,11 +286,41 @@ public abstract class Encoder extends ProvidedStage<Frame> {
         return mFutureOutputFormat;
     }
 
+    /**
+     * 通过{@link CodecSelector}选择最好的编码器，写到mediaFormat的{@link #KEY_CODEC_NAME}中
+     * @param colorFormat 输入需要支持的颜色格式，音频传0
+     */
+    protected static void selectCodec(MediaFormat mediaFormat, int colorFormat) {
+        String codecName = CodecSelector.selectEncoder(mediaFormat.getString(MediaFormat.KEY_MIME), colorFormat);
+        if (codecName != null) {
+            mediaFormat.setString(KEY_CODEC_NAME, codecName);
+        }
+    }
+
+    /**
+     * <p>动态修改codec的参数，比如码率、请求关键帧，需要Android 4.4</p>
+     * 需要在Stage的线程中调用，其他线程通过{@link #queueRunnable(Runnable)}抛过来
+     * @return codec还没有创建、已经释放或者系统版本不支持时返回false
+     */
+    protected boolean setCodecParameters(Bundle params) {
+        if (mMediaCodec == null || isAllDataReady() || isDone()) {
+            return false;
+        }
+
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.KITKAT) {
+            MeLog.w(TAG, "set codec parameters requires api 19");
+            return false;
+        }
+        mMediaCodec.setParameters(params);
+        return true;
+    }
+
     private void checkForEos() {
         Frame frame = mRawFramesProvider.dequeueOutputBuffer();
         if (frame == null) {
             return;
         }
+        mMetrics.recordFrameIn();
 
         if (MediaUtils.hasEosFlag(frame.flags)) {
             mMediaCodec.signalEndOfInputStream();
@@ -104,94 +329,355 @@ public abstract class Encoder extends ProvidedStage<Frame> {
         mRawFramesProvider.enqueueOutputBuffer(frame);
     }
 
+    /**
+     * 把上游目前所有的数据喂给codec，直到没有数据、没有输入buffer或者达到每轮的上限
+     */
     private void feedDataToMediaCodec() {
-        if (isAllDataReady() || isDone()) {
-            return;
+        int count = 0;
+        while (count < mMaxFramesPerTick && feedOneFrame()) {
+            count++;
+        }
+
+        // 上游暂时没有更多数据了，已经合并的数据先提交，不额外增加延迟
+        if (mInputPacker.getInputBufferFilled() > 0 && !mInputPacker.hasPendingFrame()) {
+            queueCodecInputBuffer(0);
+        }
+    }
+
+    /**
+     * 从上游的数据拷贝一段到codec的输入buffer中，拆分、合并的规则见{@link CodecInputPacker}
+     * @return 是否有进展
+     */
+    private boolean feedOneFrame() {
+        if (isAllDataReady() || isDone() || mIsInputEnd) {
+            return false;
         }
 
         // 如果之前没有获取到输入Buffer，则需要重新获取下。
-        if (mInputBufferIndex < 0) {
-            mInputBufferIndex = mMediaCodec.dequeueInputBuffer(0);
+        if (!mInputPacker.hasInputBuffer()) {
+            mInputBufferIndex = dequeueCodecInputBuffer();
+            if (mInputBufferIndex < 0) {
+                return false;
+            }
+            mInputPacker.setInputBuffer(getCodecInputBuffer(mInputBufferIndex));
         }
-        if (mInputBufferIndex < 0) {
-            return;
+
+        if (!mInputPacker.hasPendingFrame()) {
+            Frame frame = mRawFramesProvider.dequeueOutputBuffer();
+            if (frame == null) {
+                return false;
+            }
+            mMetrics.recordFrameIn();
+
+            if (MediaUtils.hasEosFlag(frame.flags)) {
+                frame.size = 0;
+            }
+            if (!mInputPacker.setPendingFrame(frame)) {
+                queueCodecInputBuffer(0);
+                return true;
+            }
         }
 
-        Frame frame = mRawFramesProvider.dequeueOutputBuffer();
-        if (frame == null) {
-            return;
+        Frame frame = mInputPacker.getPendingFrame();
+        if (!mInputPacker.copyPendingFrame()) {
+            queueCodecInputBuffer(0);
+            return true;
         }
 
-        if (MediaUtils.hasEosFlag(frame.flags)) {
-            frame.size = 0;
+        boolean isFrameConsumed = !mInputPacker.hasPendingFrame();
+        boolean isEos = MediaUtils.hasEosFlag(frame.flags);
+        int flags = frame.flags;
+        if (isFrameConsumed) {
+            mRawFramesProvider.enqueueOutputBuffer(frame);
         }
 
-        ByteBuffer inputBuffer = mMediaCodec.getInputBuffers()[mInputBufferIndex];
-        if (frame.size > 0) {
-            JniEntry.byteBufferCopy(frame.buffer, inputBuffer, frame.size);
+        if (isFrameConsumed && isEos) {
+            queueCodecInputBuffer(MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+            mIsInputEnd = true;
+        } else if (!mInputPacker.isPcm()) {
+            queueCodecInputBuffer(flags);
+        } else if (mInputPacker.isInputBufferFull()) {
+            queueCodecInputBuffer(0);
         }
+        return true;
+    }
+
+    private void queueCodecInputBuffer(int flags) {
+        long pts = mInputPacker.getInputBufferPts();
+        int size = mInputPacker.getInputBufferFilled();
+        if (MeLog.isLoggable(MeLog.LEVEL_VERBOSE)) {
+            MeLog.v(TAG, "encoder queueInputBuffer %d, size: %d, flags: %d", pts, size, flags);
+        }
+        long traceStartNs = PipelineTracer.now();
+        mMediaCodec.queueInputBuffer(mInputBufferIndex, 0, size, pts, flags);
+        PipelineTracer.complete(PipelineTracer.CATEGORY_CODEC, "queueInputBuffer", traceStartNs, pts);
 
-        MeLog.v(TAG, "encoder queueInputBuffer %d, flags: %d", frame.presentationTimeUs, frame.flags);
-        mMediaCodec.queueInputBuffer(mInputBufferIndex, inputBuffer.position(), frame.size,
-                frame.presentationTimeUs, frame.flags);
         mInputBufferIndex = -1;
+        mInputPacker.resetInputBuffer();
+    }
 
-        mRawFramesProvider.enqueueOutputBuffer(frame);
+    /**
+     * 输入为16位PCM时每秒的字节数，其他格式返回0
+     */
+    private static long getPcmBytesPerSecond(MediaFormat mediaFormat) {
+        String mimeType = mediaFormat.getString(MediaFormat.KEY_MIME);
+        if (mimeType == null || !mimeType.startsWith("audio/")
+                || !mediaFormat.containsKey(MediaFormat.KEY_SAMPLE_RATE)
+                || !mediaFormat.containsKey(MediaFormat.KEY_CHANNEL_COUNT)) {
+            return 0;
+        }
+        return (long) mediaFormat.getInteger(MediaFormat.KEY_SAMPLE_RATE)
+                * mediaFormat.getInteger(MediaFormat.KEY_CHANNEL_COUNT) * MediaConstants.BYTE_COUNT_PRE_SAMPLE;
+    }
+
+    /**
+     * 输入为16位PCM时所有声道一个采样的字节数，其他格式返回0
+     */
+    private static int getPcmFrameBytes(MediaFormat mediaFormat) {
+        if (getPcmBytesPerSecond(mediaFormat) <= 0) {
+            return 0;
+        }
+        return mediaFormat.getInteger(MediaFormat.KEY_CHANNEL_COUNT) * MediaConstants.BYTE_COUNT_PRE_SAMPLE;
+    }
+
+    /**
+     * 把上游写好的codec输入buffer提交给codec
+     */
+    private void queueFilledInputBuffers() {
+        Frame frame;
+        while ((frame = mInputLender.pollFilled()) != null) {
+            mMetrics.recordFrameIn();
+            if (MediaUtils.hasEosFlag(frame.flags)) {
+                frame.size = 0;
+                mIsInputEnd = true;
+            }
+
+            if (MeLog.isLoggable(MeLog.LEVEL_VERBOSE)) {
+                MeLog.v(TAG, "encoder queueInputBuffer %d, flags: %d", frame.presentationTimeUs, frame.flags);
+            }
+            long traceStartNs = PipelineTracer.now();
+            mMediaCodec.queueInputBuffer(frame.bufferIndex, frame.offset, frame.size, frame.presentationTimeUs,
+                    frame.flags);
+            PipelineTracer.complete(PipelineTracer.CATEGORY_CODEC, "queueInputBuffer", traceStartNs,
+                    frame.presentationTimeUs);
+
+            frame.buffer = null;
+            mFreeInputFrames.add(frame);
+        }
+    }
+
+    /**
+     * 借出codec的空闲输入buffer，最多同时借出mMaxFrameCount个
+     */
+    private void lendInputBuffers() {
+        while (!mIsInputEnd && mInputLender.getOutstandingCount() < mMaxFrameCount) {
+            int index = dequeueCodecInputBuffer();
+            if (index < 0) {
+                return;
+            }
+
+            Frame frame = mFreeInputFrames.poll();
+            if (frame == null) {
+                frame = new Frame(null);
+            }
+            frame.buffer = getCodecInputBuffer(index);
+            frame.buffer.clear();
+            frame.bufferIndex = index;
+            frame.offset = 0;
+            frame.size = 0;
+            frame.presentationTimeUs = 0;
+            frame.flags = 0;
+            mInputLender.lend(frame);
+        }
+    }
+
+    /**
+     * 获取一个codec空闲的输入buffer
+     * @return 没有则返回负数
+     */
+    private int dequeueCodecInputBuffer() {
+        int index;
+        if (mUseCodecCallback) {
+            Integer availableIndex = mAvailableInputIndexes.poll();
+            index = availableIndex == null ? -1 : availableIndex;
+        } else {
+            long traceStartNs = PipelineTracer.now();
+            index = mMediaCodec.dequeueInputBuffer(0);
+            PipelineTracer.complete(PipelineTracer.CATEGORY_CODEC, "dequeueInputBuffer", traceStartNs, index);
+        }
+
+        if (index < 0) {
+            mMetrics.recordCodecTryAgain();
+        }
+        return index;
+    }
+
+    private ByteBuffer getCodecInputBuffer(int index) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            return mMediaCodec.getInputBuffer(index);
+        }
+        return mInputBuffers[index];
     }
 
     @Override
     protected void recycleBuffers(List<Frame> canReuseBuffers) {
-        for (Frame frame : canReuseBuffers) {
+        for (int i = 0; i < canReuseBuffers.size(); ++i) {
+            Frame frame = canReuseBuffers.get(i);
+            long traceStartNs = PipelineTracer.now();
             mMediaCodec.releaseOutputBuffer(frame.bufferIndex, false);
+            PipelineTracer.complete(PipelineTracer.CATEGORY_CODEC, "releaseOutputBuffer", traceStartNs,
+                    frame.bufferIndex);
+            frame.buffer = null;
+            mFreeFrames.add(frame);
         }
     }
 
+    /**
+     * 取出codec目前所有已经编码好的数据，直到没有数据、输出队列满了或者达到每轮的上限
+     */
     private void drainEncodedFrame() {
-        synchronized (this) {
-            if (mProcessedBuffers.size() >= MAX_FRAME_COUNT) {
-                return;
+        int count = 0;
+        while (count < mMaxFramesPerTick && mProcessedBuffers.size() < mMaxFrameCount && drainOneFrame()) {
+            count++;
+        }
+    }
+
+    /**
+     * @return codec是否有输出，包括格式变化之类的通知
+     */
+    private boolean drainOneFrame() {
+        if (mUseCodecCallback) {
+            OutputEvent event = mAvailableOutputEvents.poll();
+            if (event == null) {
+                return false;
             }
+
+            onEncodedFrame(event.mIndex, event.mBufferInfo);
+            mFreeOutputEvents.offer(event);
+            return true;
         }
 
+        long traceStartNs = PipelineTracer.now();
         int encoderStatus = mMediaCodec.dequeueOutputBuffer(mBufferInfo, 0);
+        PipelineTracer.complete(PipelineTracer.CATEGORY_CODEC, "dequeueOutputBuffer", traceStartNs, encoderStatus);
         if (encoderStatus == MediaCodec.INFO_TRY_AGAIN_LATER) {
-            return;
+            mMetrics.recordCodecTryAgain();
+            return false;
         }
 
         if (encoderStatus == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
             MeLog.i(TAG, "decoder output buffers changed");
-            return;
+            return true;
         }
 
         if (encoderStatus == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
             mFutureOutputFormat.setResult(mMediaCodec.getOutputFormat());
             MeLog.i(TAG, "encoder output format changed: %s", mMediaCodec.getOutputFormat());
-            return;
+            return true;
         }
 
         if (encoderStatus < 0) {
             throw new RuntimeException("unexpected result from encoder.dequeueOutputBuffer: " + encoderStatus);
         }
 
+        onEncodedFrame(encoderStatus, mBufferInfo);
+        return true;
+    }
+
+    private void onEncodedFrame(int index, MediaCodec.BufferInfo bufferInfo) {
         ByteBuffer buffer;
         // 如果高版本机器通过getOutputBuffers读取数据，会得到一个inaccessible的ByteBuffer，无法访问其数据。
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
-            buffer = mMediaCodec.getOutputBuffer(encoderStatus);
+            buffer = mMediaCodec.getOutputBuffer(index);
         } else {
-            buffer = mMediaCodec.getOutputBuffers()[encoderStatus];
+            buffer = mMediaCodec.getOutputBuffers()[index];
+        }
+        if (MeLog.isLoggable(MeLog.LEVEL_VERBOSE)) {
+            MeLog.v(TAG, "encoder getOutputBuffer %d, flags: %d", bufferInfo.presentationTimeUs, bufferInfo.flags);
+        }
+
+        Frame frame = mFreeFrames.poll();
+        if (frame == null) {
+            frame = new Frame(buffer, index, bufferInfo);
+        } else {
+            frame.buffer = buffer;
+            frame.bufferIndex = index;
+            frame.updateBufferInfo(bufferInfo);
         }
-        MeLog.v(TAG, "encoder getOutputBuffer %d, flags: %d", mBufferInfo.presentationTimeUs, mBufferInfo.flags);
-        Frame frame = new Frame(buffer, encoderStatus, mBufferInfo);
 
-        if (MediaUtils.hasEosFlag(mBufferInfo.flags)) {
-            mBufferInfo.size = 0;
+        if (MediaUtils.hasEosFlag(bufferInfo.flags)) {
+            bufferInfo.size = 0;
             MeLog.i(TAG, "encoder meet eos");
             setState(State.ALL_DATA_READY);
         }
 
-        synchronized (this) {
-            mProcessedBuffers.add(frame);
+        enqueueProcessedBuffer(frame);
+    }
+
+    private void setupCodecCallback() {
+        mAvailableInputIndexes = new SpscRingQueue<>(CALLBACK_QUEUE_CAPACITY);
+        mAvailableOutputEvents = new SpscRingQueue<>(CALLBACK_QUEUE_CAPACITY);
+        mFreeOutputEvents = new SpscRingQueue<>(CALLBACK_QUEUE_CAPACITY);
+
+        mCallbackThread = new HandlerThread(TAG + "-Callback");
+        mCallbackThread.start();
+        mMediaCodec.setCallback(new CodecCallback(), new Handler(mCallbackThread.getLooper()));
+    }
+
+    /**
+     * 在{@link #mCallbackThread}中执行，只把索引放进队列然后唤醒Stage，不直接操作codec
+     */
+    private class CodecCallback extends MediaCodec.Callback {
+        @Override
+        public void onInputBufferAvailable(@NonNull MediaCodec codec, int index) {
+            if (!mAvailableInputIndexes.offer(index)) {
+                onCallbackError(new RuntimeException("input index queue overflow: " + index));
+                return;
+            }
+            wakeupTask();
+        }
+
+        @Override
+        public void onOutputBufferAvailable(@NonNull MediaCodec codec, int index,
+                                            @NonNull MediaCodec.BufferInfo info) {
+            OutputEvent event = mFreeOutputEvents.poll();
+            if (event == null) {
+                event = new OutputEvent();
+            }
+            event.mIndex = index;
+            event.mBufferInfo.set(info.offset, info.size, info.presentationTimeUs, info.flags);
+            if (!mAvailableOutputEvents.offer(event)) {
+                onCallbackError(new RuntimeException("output event queue overflow: " + index));
+                return;
+            }
+            wakeupTask();
+        }
+
+        @Override
+        public void onError(@NonNull MediaCodec codec, @NonNull MediaCodec.CodecException e) {
+            onCallbackError(e);
+        }
+
+        /**
+         * 不在回调线程中抛出异常（会导致进程崩溃），只记录第一个错误，唤醒Stage处理
+         */
+        private void onCallbackError(RuntimeException e) {
+            MeLog.e(TAG, "encoder error", e);
+            if (mCodecError == null) {
+                mCodecError = e;
+            }
+            wakeupTask();
+        }
+
+        @Override
+        public void onOutputFormatChanged(@NonNull MediaCodec codec, @NonNull MediaFormat format) {
+            mFutureOutputFormat.setResult(format);
+            MeLog.i(TAG, "encoder output format changed: %s", format);
         }
     }
 
+    private static class OutputEvent {
+        private int mIndex;
+        private final MediaCodec.BufferInfo mBufferInfo = new MediaCodec.BufferInfo();
+    }
 }
@@ -0,0 +1,262 @@
+package com.winom.multimedia.encoder;
+
+import android.media.MediaCodec;
+import android.os.Build;
+
+import com.winom.multimedia.utils.MeLog;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+/**
+ * <p>进程内共享的编码器MediaCodec池</p>
+ * 创建MediaCodec需要几十到几百毫秒，用完之后通过{@link MediaCodec#reset()}回到未配置的状态放回池中，
+ * 下次同类型的编码器直接取出来重新configure，连续录制时不需要每次都重新创建。
+ * reset需要Android 5.0，低版本用完直接释放。池中所有的实例（包括正在使用的）个数有上限，
+ * 避免占满硬件编码器的实例导致其他编码器创建失败。
+ */
+public class MediaCodecPool {
+    private static final String TAG = "MediaCodecPool";
+    private static final int DEFAULT_MAX_LIVE_COUNT = 2;
+
+    private static final MediaCodecPool sInstance = new MediaCodecPool();
+
+    /**
+     * 空闲的实例，最早放回来的在前面，需要腾出位置时先释放它们
+     */
+    private final ArrayDeque<IdleCodec> mIdleCodecs = new ArrayDeque<>();
+
+    private int mMaxLiveCount = DEFAULT_MAX_LIVE_COUNT;
+
+    /**
+     * 池创建的、还没有释放的实例个数，包括空闲的和正在使用的
+     */
+    private int mLiveCount = 0;
+
+    public static MediaCodecPool getInstance() {
+        return sInstance;
+    }
+
+    private MediaCodecPool() {
+    }
+
+    /**
+     * 设置最多同时存在的实例个数，超出的空闲实例会被释放
+     */
+    public void setMaxLiveCount(int maxLiveCount) {
+        if (maxLiveCount <= 0) {
+            throw new IllegalArgumentException("max live count must be positive: " + maxLiveCount);
+        }
+
+        synchronized (this) {
+            mMaxLiveCount = maxLiveCount;
+        }
+        trimIdleCodecs(Integer.MAX_VALUE);
+    }
+
+    /**
+     * <p>提前创建好编码器放到池中，比如进入录制页面时调用，开始录制时就不需要等待创建</p>
+     * 会创建MediaCodec，比较耗时，不要在主线程调用
+     * @param codecName 编码器的名字，比如{@link CodecSelector#selectEncoder}的结果，为null时使用系统默认的编码器
+     * @param count 池中该类型空闲的实例最少要有多少个
+     */
+    public void prewarm(String mimeType, String codecName, int count) throws IOException {
+        while (true) {
+            IdleCodec victim;
+            boolean isReserved;
+            synchronized (this) {
+                if (countIdleCodecs(mimeType, codecName) >= count) {
+                    return;
+                }
+                victim = evictForSlot(mimeType);
+                isReserved = reserveSlot();
+            }
+
+            if (victim != null) {
+                releaseCodec(victim.mCodec);
+            }
+            if (!isReserved) {
+                return;
+            }
+
+            MediaCodec codec = createEncoder(mimeType, codecName);
+            synchronized (this) {
+                mIdleCodecs.addLast(new IdleCodec(mimeType, codec));
+            }
+            MeLog.i(TAG, "prewarmed encoder [%s] %s", mimeType, codec.getName());
+        }
+    }
+
+    /**
+     * 取出一个未配置的编码器，池中没有则创建，用完后通过{@link #recycle}放回来
+     * @param codecName 编码器的名字，为null时使用系统默认的编码器
+     * @throws IOException 创建失败，或者实例个数已经达到上限并且没有可以释放的空闲实例
+     */
+    public MediaCodec acquireEncoder(String mimeType, String codecName) throws IOException {
+        IdleCodec victim;
+        boolean isReserved;
+        synchronized (this) {
+            Iterator<IdleCodec> iterator = mIdleCodecs.iterator();
+            while (iterator.hasNext()) {
+                IdleCodec idleCodec = iterator.next();
+                if (idleCodec.isMatch(mimeType, codecName)) {
+                    iterator.remove();
+                    MeLog.i(TAG, "reuse encoder [%s] %s", mimeType, idleCodec.mCodec.getName());
+                    return idleCodec.mCodec;
+                }
+            }
+
+            victim = evictForSlot(mimeType);
+            isReserved = reserveSlot();
+        }
+
+        // MediaCodec.release会等待codec的内部线程，不能在锁中调用
+        if (victim != null) {
+            releaseCodec(victim.mCodec);
+        }
+        if (!isReserved) {
+            throw new IOException("encoder instance limit reached: " + mMaxLiveCount);
+        }
+        return createEncoder(mimeType, codecName);
+    }
+
+    /**
+     * 放回从{@link #acquireEncoder}取出的编码器，不管处于什么状态都可以，出错的codec通过{@link #discard}释放
+     */
+    public void recycle(String mimeType, MediaCodec codec) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            discard(codec);
+            return;
+        }
+
+        try {
+            codec.reset();
+            // 清除之前设置的回调，下次使用的时候可能是同步模式
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+                codec.setCallback(null);
+            }
+        } catch (IllegalStateException e) {
+            MeLog.w(TAG, "reset encoder failed, release it: %s", e.getMessage());
+            discard(codec);
+            return;
+        }
+
+        synchronized (this) {
+            mIdleCodecs.addLast(new IdleCodec(mimeType, codec));
+        }
+        trimIdleCodecs(Integer.MAX_VALUE);
+    }
+
+    /**
+     * 释放从{@link #acquireEncoder}取出的编码器，不再放回池中
+     */
+    public void discard(MediaCodec codec) {
+        releaseCodec(codec);
+        synchronized (this) {
+            mLiveCount--;
+        }
+    }
+
+    /**
+     * 释放所有空闲的实例，比如退出录制页面时调用
+     */
+    public void clear() {
+        trimIdleCodecs(0);
+    }
+
+    /**
+     * 释放空闲实例，直到总数不超过上限，或者空闲的个数不超过maxIdleCount
+     */
+    private void trimIdleCodecs(int maxIdleCount) {
+        while (true) {
+            IdleCodec idleCodec;
+            synchronized (this) {
+                boolean isOverLimit = mLiveCount > mMaxLiveCount || mIdleCodecs.size() > maxIdleCount;
+                if (!isOverLimit || mIdleCodecs.isEmpty()) {
+                    return;
+                }
+                idleCodec = mIdleCodecs.pollFirst();
+                mLiveCount--;
+            }
+            releaseCodec(idleCodec.mCodec);
+        }
+    }
+
+    /**
+     * <p>实例个数达到上限时，从池中取出其他类型最早放回来的空闲实例，给新实例腾出位置</p>
+     * 需要在锁中调用，取出的实例由调用方在锁外释放
+     * @return 不需要腾出位置或者没有可以释放的实例则返回null
+     */
+    private IdleCodec evictForSlot(String mimeType) {
+        if (mLiveCount < mMaxLiveCount) {
+            return null;
+        }
+
+        Iterator<IdleCodec> iterator = mIdleCodecs.iterator();
+        while (iterator.hasNext()) {
+            IdleCodec idleCodec = iterator.next();
+            if (!idleCodec.mMimeType.equals(mimeType)) {
+                iterator.remove();
+                mLiveCount--;
+                return idleCodec;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 为新实例占一个位置，需要在锁中调用
+     * @return 没有位置则返回false
+     */
+    private boolean reserveSlot() {
+        if (mLiveCount >= mMaxLiveCount) {
+            return false;
+        }
+        mLiveCount++;
+        return true;
+    }
+
+    private MediaCodec createEncoder(String mimeType, String codecName) throws IOException {
+        try {
+            if (codecName != null) {
+                return CodecSelector.createByCodecName(codecName);
+            }
+            return MediaCodec.createEncoderByType(mimeType);
+        } catch (IOException | RuntimeException e) {
+            synchronized (this) {
+                mLiveCount--;
+            }
+            throw e;
+        }
+    }
+
+    private int countIdleCodecs(String mimeType, String codecName) {
+        int count = 0;
+        for (IdleCodec idleCodec : mIdleCodecs) {
+            if (idleCodec.isMatch(mimeType, codecName)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static void releaseCodec(MediaCodec codec) {
+        MeLog.i(TAG, "release encoder %s", codec.getName());
+        codec.release();
+    }
+
+    private static class IdleCodec {
+        private final String mMimeType;
+        private final MediaCodec mCodec;
+
+        private IdleCodec(String mimeType, MediaCodec codec) {
+            mMimeType = mimeType;
+            mCodec = codec;
+        }
+
+        private boolean isMatch(String mimeType, String codecName) {
+            return mMimeType.equals(mimeType) && (codecName == null || codecName.equals(mCodec.getName()));
+        }
+    }
+}
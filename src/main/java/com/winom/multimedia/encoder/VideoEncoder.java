@@ -0,0 +1,207 @@
+package com.winom.multimedia.encoder;
+
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaFormat;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.SystemClock;
+
+import com.winom.multimedia.exceptions.ProcessException;
+import com.winom.multimedia.pipeline.Provider;
+import com.winom.multimedia.source.Frame;
+import com.winom.multimedia.utils.MeLog;
+
+/**
+ * <p>H.264视频编码器</p>
+ * 开启码率自适应后，下游（Muxer、推流等）读取不过来导致输出队列一直是满的时，会通过{@link MediaCodec#setParameters}
+ * 逐步降低码率，下游恢复后再逐步升回设置的码率，避免实时录制时延迟无限增长。
+ */
+public class VideoEncoder extends Encoder {
+    private static final String TAG = "VideoEncoder";
+    private static final String MIME_TYPE = "video/avc";
+
+    /**
+     * Android 11才有{@link MediaFormat}中的KEY_LOW_LATENCY，这里直接使用它的值
+     */
+    private static final String KEY_LOW_LATENCY = "low-latency";
+
+    /**
+     * 输出队列持续满了这么久才降低码率，避免偶尔的抖动触发调整
+     */
+    private static final long CONGESTION_DURATION_MS = 500;
+
+    /**
+     * 输出队列持续为空这么久才升高码率
+     */
+    private static final long RECOVER_DURATION_MS = 3000;
+
+    /**
+     * 两次调整码率的最小间隔，给codec的码率控制留出生效的时间
+     */
+    private static final long ADJUST_INTERVAL_MS = 1000;
+
+    private final MediaFormat mMediaFormat;
+    private final int mTargetBitRate;
+
+    private boolean mIsBitRateAdaptive = false;
+    private int mMinBitRate;
+    private volatile int mCurrentBitRate;
+    private long mCongestedSinceMs = -1;
+    private long mIdleSinceMs = -1;
+    private long mLastAdjustMs = 0;
+
+    public VideoEncoder(MediaFormat mediaFormat, Provider<Frame> provider) {
+        this(false, mediaFormat, provider);
+    }
+
+    /**
+     * @param mediaFormat 通过{@link #buildMediaFormat}创建，setup之前还可以通过该类的其他接口修改
+     */
+    public VideoEncoder(boolean useInputSurface, MediaFormat mediaFormat, Provider<Frame> provider) {
+        super(useInputSurface, mediaFormat, provider);
+        mMediaFormat = mediaFormat;
+        mTargetBitRate = mediaFormat.getInteger(MediaFormat.KEY_BIT_RATE);
+        mCurrentBitRate = mTargetBitRate;
+    }
+
+    /**
+     * @param iFrameInterval 关键帧间隔，单位为秒
+     * @param useInputSurface 是否通过Surface输入，否则输入为YUV420
+     */
+    public static MediaFormat buildMediaFormat(int width, int height, int frameRate, int bitRate, int iFrameInterval,
+                                               boolean useInputSurface) {
+        int colorFormat = useInputSurface
+                ? MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface
+                : MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420Flexible;
+        MediaFormat mediaFormat = MediaFormat.createVideoFormat(MIME_TYPE, width, height);
+        mediaFormat.setInteger(MediaFormat.KEY_COLOR_FORMAT, colorFormat);
+        mediaFormat.setInteger(MediaFormat.KEY_FRAME_RATE, frameRate);
+        mediaFormat.setInteger(MediaFormat.KEY_BIT_RATE, bitRate);
+        mediaFormat.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, iFrameInterval);
+        selectCodec(mediaFormat, colorFormat);
+        return mediaFormat;
+    }
+
+    /**
+     * <p>设置码率控制模式，需要Android 5.0，低版本忽略</p>
+     * 实时推流建议使用CBR，录制到文件建议使用VBR
+     * @param bitRateMode {@link MediaCodecInfo.EncoderCapabilities#BITRATE_MODE_CBR}或者
+     *                    {@link MediaCodecInfo.EncoderCapabilities#BITRATE_MODE_VBR}
+     */
+    public void setBitRateMode(int bitRateMode) {
+        if (mState != State.INIT) {
+            throw new RuntimeException("only can set bit rate mode in init state");
+        }
+
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            MeLog.w(TAG, "bit rate mode requires api 21, ignored");
+            return;
+        }
+        mMediaFormat.setInteger(MediaFormat.KEY_BITRATE_MODE, bitRateMode);
+    }
+
+    /**
+     * <p>设置为低延迟模式：实时优先级，codec内部不缓存帧</p>
+     * 各个参数需要的系统版本不一样，codec不支持的参数会被忽略
+     */
+    public void setLowLatency(boolean lowLatency) {
+        if (mState != State.INIT) {
+            throw new RuntimeException("only can set low latency in init state");
+        }
+
+        if (lowLatency) {
+            mMediaFormat.setInteger(MediaFormat.KEY_PRIORITY, 0);
+            mMediaFormat.setInteger(MediaFormat.KEY_LATENCY, 1);
+            mMediaFormat.setInteger(KEY_LOW_LATENCY, 1);
+        }
+    }
+
+    /**
+     * <p>开启码率自适应，需要Android 4.4</p>
+     * 下游堵塞时码率最低降到minBitRate，恢复后最高升到构造时MediaFormat中的码率
+     */
+    public void setAdaptiveBitRate(int minBitRate) {
+        if (mState != State.INIT) {
+            throw new RuntimeException("only can set adaptive bit rate in init state");
+        }
+        if (minBitRate <= 0 || minBitRate > mTargetBitRate) {
+            throw new IllegalArgumentException("min bit rate must be in (0, " + mTargetBitRate + "]: " + minBitRate);
+        }
+        mIsBitRateAdaptive = true;
+        mMinBitRate = minBitRate;
+    }
+
+    /**
+     * 当前使用的码率，开启码率自适应后会变化，可以在任意线程调用
+     */
+    public int getCurrentBitRate() {
+        return mCurrentBitRate;
+    }
+
+    /**
+     * 请求codec尽快输出一个关键帧，比如推流有新的观众加入时，可以在任意线程调用
+     */
+    public void requestSyncFrame() {
+        queueRunnable(() -> {
+            Bundle params = new Bundle();
+            params.putInt(MediaCodec.PARAMETER_KEY_REQUEST_SYNC_FRAME, 0);
+            if (setCodecParameters(params)) {
+                MeLog.i(TAG, "request sync frame");
+            }
+        });
+    }
+
+    @Override
+    public void processFrame() throws ProcessException {
+        super.processFrame();
+        if (mIsBitRateAdaptive) {
+            adaptBitRate();
+        }
+    }
+
+    /**
+     * 输出队列满了说明下游读取不过来，持续一段时间后码率降到3/4；队列持续为空后每次升高目标码率的1/10
+     */
+    private void adaptBitRate() {
+        long now = SystemClock.elapsedRealtime();
+        int backlog = mProcessedBuffers.size();
+        if (backlog >= mMaxFrameCount) {
+            mIdleSinceMs = -1;
+            if (mCongestedSinceMs < 0) {
+                mCongestedSinceMs = now;
+            }
+
+            if (mCurrentBitRate > mMinBitRate && now - mCongestedSinceMs >= CONGESTION_DURATION_MS
+                    && now - mLastAdjustMs >= ADJUST_INTERVAL_MS) {
+                updateBitRate(Math.max(mMinBitRate, mCurrentBitRate / 4 * 3), now);
+                mCongestedSinceMs = now;
+            }
+        } else if (backlog == 0) {
+            mCongestedSinceMs = -1;
+            if (mIdleSinceMs < 0) {
+                mIdleSinceMs = now;
+            }
+
+            if (mCurrentBitRate < mTargetBitRate && now - mIdleSinceMs >= RECOVER_DURATION_MS
+                    && now - mLastAdjustMs >= ADJUST_INTERVAL_MS) {
+                updateBitRate(Math.min(mTargetBitRate, mCurrentBitRate + mTargetBitRate / 10), now);
+                mIdleSinceMs = now;
+            }
+        } else {
+            mCongestedSinceMs = -1;
+            mIdleSinceMs = -1;
+        }
+    }
+
+    private void updateBitRate(int bitRate, long now) {
+        Bundle params = new Bundle();
+        params.putInt(MediaCodec.PARAMETER_KEY_VIDEO_BITRATE, bitRate);
+        if (setCodecParameters(params)) {
+            MeLog.i(TAG, "bit rate changed: %d -> %d, queued frames: %d", mCurrentBitRate, bitRate,
+                    mProcessedBuffers.size());
+            mCurrentBitRate = bitRate;
+        }
+        mLastAdjustMs = now;
+    }
+}
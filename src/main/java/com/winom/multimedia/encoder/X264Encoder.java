@@ -0,0 +1,312 @@
+package com.winom.multimedia.encoder;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import com.winom.multimedia.exceptions.ProcessException;
+import com.winom.multimedia.exceptions.ReleaseException;
+import com.winom.multimedia.exceptions.SetupException;
+import com.winom.multimedia.pipeline.ProvidedStage;
+import com.winom.multimedia.pipeline.Provider;
+import com.winom.multimedia.source.Frame;
+import com.winom.multimedia.utils.FutureObject;
+import com.winom.multimedia.utils.JniEntry;
+import com.winom.multimedia.utils.MeLog;
+import com.winom.multimedia.utils.MediaUtils;
+import com.winom.multimedia.utils.PipelineTracer;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.Queue;
+
+/**
+ * <p>通过libx264软件编码H.264，输入为I420，数据需要在direct buffer中</p>
+ * 不占用MediaCodec的实例，硬件编码器不可用、实例个数用完或者需要更高吞吐的时候可以替代{@link Encoder}，
+ * 输出格式和{@link Encoder}一致，可以直接交给{@link com.winom.multimedia.writer.Muxer#addTrackProvider}。
+ */
+public class X264Encoder extends ProvidedStage<Frame> {
+    private static final String TAG = "X264Encoder";
+    private static final String MIME_TYPE = "video/avc";
+
+    private static final String DEFAULT_PRESET = "veryfast";
+
+    /**
+     * SPS、PPS的最大长度
+     */
+    private static final int MAX_HEADERS_SIZE = 1024;
+
+    private final Provider<Frame> mRawFramesProvider;
+    private final FutureObject<MediaFormat> mFutureOutputFormat = new FutureObject<>();
+
+    private final int mWidth;
+    private final int mHeight;
+    private final int mFrameRate;
+    private final int mBitRate;
+    private final int mIFrameInterval;
+    private final int mFrameSize;
+
+    private String mPreset = DEFAULT_PRESET;
+    private String mTune;
+    private int mThreadCount = 0;
+    private boolean mSlicedThreads = false;
+    private int mCrf = 0;
+
+    private long mHandle = 0;
+    private boolean mIsInputEnd = false;
+    private volatile boolean mSyncFrameRequested = false;
+
+    /**
+     * 编码输出的pts、dts、是否为关键帧，每帧重复使用
+     */
+    private final long[] mOutputInfo = new long[3];
+
+    /**
+     * 已经归还回来的Frame，下次输出数据时重复使用
+     */
+    private final Queue<Frame> mFreeFrames = new ArrayDeque<>();
+
+    /**
+     * @param mediaFormat 通过{@link #buildMediaFormat}创建
+     */
+    public X264Encoder(MediaFormat mediaFormat, Provider<Frame> provider) {
+        mRawFramesProvider = provider;
+        mWidth = mediaFormat.getInteger(MediaFormat.KEY_WIDTH);
+        mHeight = mediaFormat.getInteger(MediaFormat.KEY_HEIGHT);
+        mFrameRate = mediaFormat.getInteger(MediaFormat.KEY_FRAME_RATE);
+        mBitRate = mediaFormat.getInteger(MediaFormat.KEY_BIT_RATE);
+        mIFrameInterval = mediaFormat.getInteger(MediaFormat.KEY_I_FRAME_INTERVAL);
+        mFrameSize = mWidth * mHeight * 3 / 2;
+    }
+
+    public static MediaFormat buildMediaFormat(int width, int height, int frameRate, int bitRate, int iFrameInterval) {
+        MediaFormat mediaFormat = MediaFormat.createVideoFormat(MIME_TYPE, width, height);
+        mediaFormat.setInteger(MediaFormat.KEY_FRAME_RATE, frameRate);
+        mediaFormat.setInteger(MediaFormat.KEY_BIT_RATE, bitRate);
+        mediaFormat.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, iFrameInterval);
+        return mediaFormat;
+    }
+
+    /**
+     * 设置x264的preset，比如ultrafast、veryfast、medium，越快压缩率越低，默认为{@link #DEFAULT_PRESET}，
+     * 为null时使用x264自己的默认值
+     */
+    public void setPreset(String preset) {
+        if (mState != State.INIT) {
+            throw new RuntimeException("only can set preset in init state");
+        }
+        mPreset = preset;
+    }
+
+    /**
+     * 设置x264的tune，比如zerolatency、film，默认不设置
+     */
+    public void setTune(String tune) {
+        if (mState != State.INIT) {
+            throw new RuntimeException("only can set tune in init state");
+        }
+        mTune = tune;
+    }
+
+    /**
+     * <p>设置编码线程数，默认为0，由x264根据CPU核数决定</p>
+     * 多个编码器同时运行的时候可以限制每个的线程数，避免互相抢占
+     */
+    public void setThreadCount(int threadCount) {
+        if (mState != State.INIT) {
+            throw new RuntimeException("only can set thread count in init state");
+        }
+        mThreadCount = threadCount;
+    }
+
+    /**
+     * <p>是否使用slice多线程，默认使用帧级多线程</p>
+     * 帧级多线程吞吐量更高，但每个线程会多缓存一帧；slice多线程没有额外的延迟，适合实时场景
+     */
+    public void setSlicedThreads(boolean slicedThreads) {
+        if (mState != State.INIT) {
+            throw new RuntimeException("only can set sliced threads in init state");
+        }
+        mSlicedThreads = slicedThreads;
+    }
+
+    /**
+     * 设置为CRF质量模式，crf越小质量越高，大于0时不再使用MediaFormat中的码率
+     */
+    public void setCrf(int crf) {
+        if (mState != State.INIT) {
+            throw new RuntimeException("only can set crf in init state");
+        }
+        mCrf = crf;
+    }
+
+    /**
+     * 请求下一帧编码为关键帧，可以在任意线程调用
+     */
+    public void requestSyncFrame() {
+        mSyncFrameRequested = true;
+    }
+
+    public FutureObject<MediaFormat> getFutureOutputFormat() {
+        return mFutureOutputFormat;
+    }
+
+    @Override
+    public void setup() throws SetupException {
+        MeLog.i(TAG, "setup x264 encoder %dx%d, preset: %s, tune: %s, threads: %d, sliced: %b",
+                mWidth, mHeight, mPreset, mTune, mThreadCount, mSlicedThreads);
+        try {
+            mHandle = JniEntry.x264Open(mWidth, mHeight, mFrameRate, mBitRate / 1000, mCrf, mIFrameInterval,
+                    mPreset, mTune, mThreadCount, mSlicedThreads);
+        } catch (UnsatisfiedLinkError e) {
+            // 编译libmediaengine时没有x264.h，没有编译x264的接口
+            throw new SetupException("x264 is not built into libmediaengine.", e);
+        }
+        if (mHandle == 0) {
+            throw new SetupException("open x264 encoder failed.");
+        }
+
+        ByteBuffer headers = ByteBuffer.allocateDirect(MAX_HEADERS_SIZE);
+        int[] nalSizes = new int[2];
+        if (JniEntry.x264Headers(mHandle, headers, nalSizes) < 0) {
+            // setup失败时不会再调用release，这里需要自己关闭
+            JniEntry.x264Close(mHandle);
+            mHandle = 0;
+            throw new SetupException("get x264 headers failed.");
+        }
+
+        MediaFormat outputFormat = MediaFormat.createVideoFormat(MIME_TYPE, mWidth, mHeight);
+        outputFormat.setInteger(MediaFormat.KEY_FRAME_RATE, mFrameRate);
+        outputFormat.setInteger(MediaFormat.KEY_BIT_RATE, mBitRate);
+        outputFormat.setByteBuffer("csd-0", copyOf(headers, 0, nalSizes[0]));
+        outputFormat.setByteBuffer("csd-1", copyOf(headers, nalSizes[0], nalSizes[1]));
+        mFutureOutputFormat.setResult(outputFormat);
+
+        // 一帧压缩后的数据不会超过原始I420数据的大小
+        for (int i = 0; i < mMaxFrameCount; ++i) {
+            mFreeFrames.add(new Frame(ByteBuffer.allocateDirect(mFrameSize)));
+        }
+
+        setState(State.SETUPED);
+    }
+
+    @Override
+    public void processFrame() throws ProcessException {
+        super.processFrame();
+        if (isAllDataReady()) {
+            return;
+        }
+
+        while (!mFreeFrames.isEmpty()) {
+            if (mIsInputEnd) {
+                flushDelayedFrames();
+                return;
+            }
+
+            Frame frame = mRawFramesProvider.dequeueOutputBuffer();
+            if (frame == null) {
+                return;
+            }
+            mMetrics.recordFrameIn();
+
+            try {
+                if (MediaUtils.hasEosFlag(frame.flags)) {
+                    MeLog.i(TAG, "meet BUFFER_FLAG_END_OF_STREAM, %d delayed frames",
+                            JniEntry.x264DelayedFrames(mHandle));
+                    mIsInputEnd = true;
+                } else {
+                    encodeFrame(frame);
+                }
+            } finally {
+                mRawFramesProvider.enqueueOutputBuffer(frame);
+            }
+        }
+    }
+
+    @Override
+    public void release() throws ReleaseException {
+        MeLog.i(TAG, "release x264 encoder");
+        if (mHandle != 0) {
+            JniEntry.x264Close(mHandle);
+            mHandle = 0;
+        }
+    }
+
+    @Override
+    protected void recycleBuffers(List<Frame> canReuseBuffers) {
+        for (int i = 0; i < canReuseBuffers.size(); ++i) {
+            mFreeFrames.add(canReuseBuffers.get(i));
+        }
+    }
+
+    private void encodeFrame(Frame frame) throws ProcessException {
+        if (!frame.buffer.isDirect() || frame.size < mFrameSize) {
+            throw new ProcessException("x264 input must be a direct I420 buffer, size: " + frame.size);
+        }
+
+        boolean forceKeyFrame = mSyncFrameRequested;
+        mSyncFrameRequested = false;
+        encodeAndOutput(frame.buffer, frame.offset, frame.presentationTimeUs, forceKeyFrame);
+    }
+
+    /**
+     * <p>输入已经结束，取出编码器中缓存的帧，全部取出后输出EOS</p>
+     * 编码线程还没有编码完时x264_encoder_encode可能没有输出，这时不能等待下一次事件，
+     * 上游已经结束不会再唤醒任务，需要一直取到没有缓存的帧或者输出的Frame用完为止（下游归还Frame时会唤醒任务）
+     */
+    private void flushDelayedFrames() throws ProcessException {
+        while (!mFreeFrames.isEmpty()) {
+            if (JniEntry.x264DelayedFrames(mHandle) > 0) {
+                encodeAndOutput(null, 0, 0, false);
+                continue;
+            }
+
+            outputEos();
+            return;
+        }
+    }
+
+    private void outputEos() {
+        Frame eosFrame = mFreeFrames.poll();
+        eosFrame.offset = 0;
+        eosFrame.size = 0;
+        eosFrame.presentationTimeUs = 0;
+        eosFrame.flags = MediaCodec.BUFFER_FLAG_END_OF_STREAM;
+        enqueueProcessedBuffer(eosFrame);
+        setState(State.ALL_DATA_READY);
+        MeLog.i(TAG, "x264 encoder output eos");
+    }
+
+    private void encodeAndOutput(ByteBuffer input, int offset, long presentationTimeUs, boolean forceKeyFrame)
+            throws ProcessException {
+        Frame outFrame = mFreeFrames.peek();
+        long traceStartNs = PipelineTracer.now();
+        int size = JniEntry.x264Encode(mHandle, input, offset, presentationTimeUs, forceKeyFrame, outFrame.buffer,
+                mOutputInfo);
+        PipelineTracer.complete(PipelineTracer.CATEGORY_CODEC, "x264Encode", traceStartNs, presentationTimeUs);
+        if (size < 0) {
+            throw new ProcessException("x264 encode failed: " + size);
+        } else if (size == 0) {
+            // 编码器还在缓存数据，这次没有输出
+            return;
+        }
+
+        mFreeFrames.poll();
+        outFrame.offset = 0;
+        outFrame.size = size;
+        outFrame.presentationTimeUs = mOutputInfo[0];
+        outFrame.flags = mOutputInfo[2] != 0 ? MediaCodec.BUFFER_FLAG_SYNC_FRAME : 0;
+        outFrame.buffer.position(0);
+        outFrame.buffer.limit(size);
+        enqueueProcessedBuffer(outFrame);
+    }
+
+    private static ByteBuffer copyOf(ByteBuffer src, int offset, int size) {
+        ByteBuffer dst = ByteBuffer.allocate(size);
+        for (int i = 0; i < size; ++i) {
+            dst.put(src.get(offset + i));
+        }
+        dst.flip();
+        return dst;
+    }
+}
@@ -0,0 +1,244 @@
+package com.winom.multimedia.pipeline;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>把一个数据提供者的数据同时供给多个读取者</p>
+ * 每个读取者都会按顺序读到同一份数据（不做拷贝），每个读取者有自己的读取位置，
+ * 只有所有读取者都归还了某个buffer，才会把它归还给上游的提供者。
+ * 读得慢的读取者不会导致其他读取者丢帧，上游的buffer用完之后所有读取者都会等待它。
+ * <p>读取者可能运行在不同的线程中，都不能修改buffer中的数据。设置了{@link ViewFactory}时每个读取者拿到的是自己的视图，
+ * 可以修改视图本身（比如Frame的时间戳、ByteBuffer的position和limit）；没有设置时所有读取者拿到的是同一个对象，
+ * 不能修改它的任何字段。Frame使用{@link com.winom.multimedia.source.FrameViewFactory}。</p>
+ * @param <T> 数据类型
+ */
+public class BroadcastProvider<T> {
+    /**
+     * 按上游的buffer缓存的slot个数上限，上游每次都给出新的buffer对象时，超过后清空重新缓存
+     */
+    private static final int MAX_CACHED_SLOTS = 64;
+
+    /**
+     * 为每个读取者创建上游buffer的视图，读取者修改自己的视图不影响其他读取者
+     * @param <T> 数据类型
+     */
+    public interface ViewFactory<T> {
+        /**
+         * 为上游的buffer创建一个视图，同一个上游buffer对每个读取者只创建一次
+         */
+        T createView(T buffer);
+
+        /**
+         * 上游的buffer又一次被读取，把它当前的信息同步到之前创建的视图中
+         */
+        void updateView(T view, T buffer);
+    }
+
+    private final Provider<T> mUpstream;
+    private final ViewFactory<T> mViewFactory;
+    private final List<Consumer> mConsumers = new ArrayList<>();
+
+    /**
+     * 还没有被所有读取者读完并归还的buffer，第一个的序号为{@link #mBaseSequence}
+     */
+    private final List<Slot<T>> mSlots = new ArrayList<>();
+
+    /**
+     * 上游的buffer一般是复用的，按buffer缓存slot以及其中的视图，稳定后不再分配对象
+     */
+    private final Map<T, Slot<T>> mSlotCache = new IdentityHashMap<>();
+    private long mBaseSequence = 0;
+    private boolean mIsStarted = false;
+
+    public BroadcastProvider(Provider<T> upstream) {
+        this(upstream, null);
+    }
+
+    /**
+     * @param viewFactory 为每个读取者创建视图，为null时所有读取者共享同一个对象
+     */
+    public BroadcastProvider(Provider<T> upstream, ViewFactory<T> viewFactory) {
+        mUpstream = upstream;
+        mViewFactory = viewFactory;
+    }
+
+    /**
+     * 添加一个读取者，需要在开始读取数据之前添加好所有的读取者
+     * @return 该读取者使用的数据提供者
+     */
+    synchronized public Provider<T> addConsumer() {
+        if (mIsStarted) {
+            throw new RuntimeException("only can add consumer before any buffer dequeued");
+        }
+
+        Consumer consumer = new Consumer(mConsumers.size());
+        mConsumers.add(consumer);
+        return consumer;
+    }
+
+    synchronized private T dequeueOutputBuffer(Consumer consumer) {
+        mIsStarted = true;
+        StageTask currentTask = StageTask.currentTask();
+        if (currentTask != null) {
+            consumer.mTask = currentTask;
+        }
+
+        int index = (int) (consumer.mCursor - mBaseSequence);
+        if (index == mSlots.size()) {
+            T buffer = mUpstream.dequeueOutputBuffer();
+            if (buffer == null) {
+                return null;
+            }
+
+            mSlots.add(obtainSlot(buffer));
+            wakeupOtherConsumers(consumer);
+        }
+
+        consumer.mCursor++;
+        if (currentTask != null) {
+            currentTask.wakeup();
+        }
+        return mSlots.get(index).getView(consumer.mIndex);
+    }
+
+    synchronized private void enqueueOutputBuffer(Consumer consumer, T buffer) {
+        int readCount = (int) (consumer.mCursor - mBaseSequence);
+        Slot<T> slot = null;
+        for (int i = 0; i < readCount; ++i) {
+            Slot<T> candidate = mSlots.get(i);
+            if (candidate.getView(consumer.mIndex) == buffer && !candidate.mIsReturned[consumer.mIndex]) {
+                slot = candidate;
+                break;
+            }
+        }
+
+        if (slot == null) {
+            throw new RuntimeException("buffer isn't dequeued by this consumer");
+        }
+
+        // 所有读取者都归还了，马上还给上游
+        slot.mIsReturned[consumer.mIndex] = true;
+        slot.mRefCount--;
+        if (slot.mRefCount == 0) {
+            mUpstream.enqueueOutputBuffer(slot.mBuffer);
+        }
+
+        while (!mSlots.isEmpty() && mSlots.get(0).mRefCount == 0) {
+            mSlots.remove(0).mIsInUse = false;
+            mBaseSequence++;
+        }
+    }
+
+    private Slot<T> obtainSlot(T buffer) {
+        Slot<T> slot = mSlotCache.get(buffer);
+        if (slot == null || slot.mIsInUse) {
+            // 上游复用的buffer已经归还了，但是前面还有读取者没有归还的buffer，它的slot还不能复用
+            if (mSlotCache.size() >= MAX_CACHED_SLOTS) {
+                mSlotCache.clear();
+            }
+            slot = new Slot<>(buffer, mConsumers.size(), mViewFactory);
+            mSlotCache.put(buffer, slot);
+        } else if (mViewFactory != null) {
+            for (int i = 0; i < slot.mViews.length; ++i) {
+                mViewFactory.updateView(slot.getView(i), buffer);
+            }
+        }
+
+        slot.mRefCount = mConsumers.size();
+        slot.mIsInUse = true;
+        for (int i = 0; i < slot.mIsReturned.length; ++i) {
+            slot.mIsReturned[i] = false;
+        }
+        return slot;
+    }
+
+    /**
+     * 上游只会唤醒从它那里读取数据的任务，新读到的数据需要通知其他读取者
+     */
+    private void wakeupOtherConsumers(Consumer self) {
+        for (int i = 0; i < mConsumers.size(); ++i) {
+            Consumer consumer = mConsumers.get(i);
+            StageTask task = consumer.mTask;
+            if (consumer != self && task != null && task != self.mTask) {
+                task.wakeup();
+            }
+        }
+    }
+
+    private static class Slot<T> {
+        final T mBuffer;
+
+        /**
+         * 每个读取者的视图，没有设置ViewFactory时为null，所有读取者直接使用mBuffer
+         */
+        final Object[] mViews;
+
+        /**
+         * 每个读取者是否已经归还
+         */
+        final boolean[] mIsReturned;
+
+        /**
+         * 还有多少个读取者没有归还该buffer
+         */
+        int mRefCount;
+
+        /**
+         * 是否还在{@link #mSlots}中
+         */
+        boolean mIsInUse;
+
+        Slot(T buffer, int consumerCount, ViewFactory<T> viewFactory) {
+            mBuffer = buffer;
+            mIsReturned = new boolean[consumerCount];
+            if (viewFactory == null) {
+                mViews = null;
+                return;
+            }
+
+            mViews = new Object[consumerCount];
+            for (int i = 0; i < consumerCount; ++i) {
+                mViews[i] = viewFactory.createView(buffer);
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        T getView(int consumerIndex) {
+            return mViews == null ? mBuffer : (T) mViews[consumerIndex];
+        }
+    }
+
+    private class Consumer implements Provider<T> {
+        /**
+         * 该读取者在{@link #mConsumers}中的位置
+         */
+        private final int mIndex;
+
+        /**
+         * 下一个要读取的buffer的序号
+         */
+        private long mCursor = 0;
+
+        /**
+         * 读取数据的任务，只在BroadcastProvider的锁中访问
+         */
+        private StageTask mTask;
+
+        private Consumer(int index) {
+            mIndex = index;
+        }
+
+        @Override
+        public T dequeueOutputBuffer() {
+            return BroadcastProvider.this.dequeueOutputBuffer(this);
+        }
+
+        @Override
+        public void enqueueOutputBuffer(T buffer) {
+            BroadcastProvider.this.enqueueOutputBuffer(this, buffer);
+        }
+    }
+}
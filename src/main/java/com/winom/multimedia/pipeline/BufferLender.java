@@ -0,0 +1,92 @@
+package com.winom.multimedia.pipeline;
+
+import com.winom.multimedia.utils.SpscRingQueue;
+
+/**
+ * <p>Stage把自己的buffer借给另一个Stage写入数据</p>
+ * 所属的Stage在自己的线程中调用{@link #lend(Object)}借出buffer、{@link #pollFilled()}取回写好的buffer，
+ * 写入方通过{@link BufferSink}的接口在它自己的线程中读写，两边都只有一个线程，所以使用无锁队列，
+ * 有buffer借出或者提交时会唤醒对方的任务。
+ * @param <T> 数据类型
+ */
+public class BufferLender<T> implements BufferSink<T> {
+    private final Stage mOwner;
+
+    /**
+     * 已经借出还没有被写入方取走的buffer
+     */
+    private final SpscRingQueue<T> mLentBuffers;
+
+    /**
+     * 写入方写好提交回来的buffer
+     */
+    private final SpscRingQueue<T> mFilledBuffers;
+
+    /**
+     * 借出去还没有取回的buffer个数，只在所属Stage的线程访问
+     */
+    private int mOutstandingCount = 0;
+
+    private volatile StageTask mWriterTask;
+
+    /**
+     * @param owner buffer所属的Stage，写入方提交buffer时会唤醒它
+     * @param capacity 最多同时借出多少个buffer
+     */
+    public BufferLender(Stage owner, int capacity) {
+        mOwner = owner;
+        mLentBuffers = new SpscRingQueue<>(capacity);
+        mFilledBuffers = new SpscRingQueue<>(capacity);
+    }
+
+    /**
+     * 借出一个空buffer，只能在所属Stage的线程调用
+     */
+    public void lend(T buffer) {
+        if (!mLentBuffers.offer(buffer)) {
+            throw new RuntimeException("lent buffer queue is full, capacity: " + mLentBuffers.capacity());
+        }
+        mOutstandingCount++;
+
+        StageTask writerTask = mWriterTask;
+        if (writerTask != null) {
+            writerTask.wakeup();
+        }
+    }
+
+    /**
+     * 取回一个写入方已经写好的buffer，只能在所属Stage的线程调用
+     * @return 没有则返回null
+     */
+    public T pollFilled() {
+        T buffer = mFilledBuffers.poll();
+        if (buffer != null) {
+            mOutstandingCount--;
+        }
+        return buffer;
+    }
+
+    /**
+     * 借出去还没有取回的buffer个数，包括写入方正在写的
+     */
+    public int getOutstandingCount() {
+        return mOutstandingCount;
+    }
+
+    @Override
+    public T dequeueInputBuffer() {
+        StageTask currentTask = StageTask.currentTask();
+        if (currentTask != null) {
+            mWriterTask = currentTask;
+        }
+        return mLentBuffers.poll();
+    }
+
+    @Override
+    public void queueInputBuffer(T buffer) {
+        if (!mFilledBuffers.offer(buffer)) {
+            throw new RuntimeException("filled buffer queue is full, capacity: " + mFilledBuffers.capacity());
+        }
+        mOwner.wakeupTask();
+    }
+}
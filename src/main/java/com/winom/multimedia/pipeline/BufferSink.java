@@ -0,0 +1,18 @@
+package com.winom.multimedia.pipeline;
+
+/**
+ * <p>借出空buffer给上游直接写入数据的接收者，和{@link Provider}的方向相反</p>
+ * 上游取出一个空buffer，写好数据后再提交回来，中间不需要拷贝
+ * @param <T> 数据类型
+ */
+public interface BufferSink<T> {
+    /**
+     * 取出一个可以写入的空buffer，暂时没有则返回null
+     */
+    T dequeueInputBuffer();
+
+    /**
+     * 提交写好数据的buffer
+     */
+    void queueInputBuffer(T buffer);
+}
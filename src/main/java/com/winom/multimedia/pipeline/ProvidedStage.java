@@ -2,51 +2,106 @@ package com.winom.multimedia.pipeline;
 
 import com.winom.multimedia.exceptions.ProcessException;
 import com.winom.multimedia.utils.DelayRunQueue;
+import com.winom.multimedia.utils.PipelineTracer;
+import com.winom.multimedia.utils.SpscRingQueue;
 
 import java.util.ArrayList;
-import java.util.LinkedList;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Queue;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import androidx.annotation.CallSuper;
 
 /**
- * 会有数据供给出来的Stage
+ * <p>会有数据供给出来的Stage</p>
+ * 队列都是单生产者、单消费者的无锁队列，所以同一时间只能有一个Stage来读取该Stage的数据，
+ * 需要多个读取者的时候使用{@link BroadcastProvider}。
  * @param <T> 供给处理的数据类型
  */
 public abstract class ProvidedStage<T> extends Stage implements Provider<T> {
+    private static final int DEFAULT_QUEUE_CAPACITY = 64;
+
     /**
      * 该Stage已经处理好了，等待下一个Stage来读取
      */
-    protected final Queue<T> mProcessedBuffers = new LinkedList<>();
+    protected final SpscRingQueue<T> mProcessedBuffers;
 
     /**
      * 下一个Stage已经处理过的Buffer，归还回来的
      */
-    protected final Queue<T> mRecycledBuffers = new LinkedList<>();
+    protected final SpscRingQueue<T> mRecycledBuffers;
 
     /**
      * 其他线程抛过来任务，在{@link #processFrame()}中执行，保证在同一个线程来处理
      */
-    protected final DelayRunQueue mDelayRunQueue = new DelayRunQueue();
+    protected final DelayRunQueue mDelayRunQueue = new DelayRunQueue(this::wakeupTask);
 
     /**
-     * 已被下一个Stage持有的buffer的个数
+     * 已被下一个Stage持有的buffer的个数，下一个Stage的线程也会修改，子类通过{@link #getBufferOutedCount()}读取
+     */
+    private final AtomicInteger mBufferOutedCount = new AtomicInteger(0);
+
+    /**
+     * 传给{@link #recycleBuffers(List)}的列表，每次调用后清空重复使用
+     */
+    private final List<T> mCanReuseBuffers = new ArrayList<>();
+
+    /**
+     * 来读取过数据的任务，有新数据的时候需要唤醒它们
+     */
+    private volatile StageTask[] mConsumerTasks = new StageTask[0];
+
+    private final String mTraceDequeueName = getClass().getSimpleName() + ".dequeueOutputBuffer";
+    private final String mTraceEnqueueName = getClass().getSimpleName() + ".enqueueOutputBuffer";
+
+    public ProvidedStage() {
+        this(DEFAULT_QUEUE_CAPACITY);
+    }
+
+    /**
+     * @param queueCapacity 队列的容量，需要不小于该Stage会同时供给出去的buffer个数
      */
-    protected int mBufferOutedCount = 0;
+    public ProvidedStage(int queueCapacity) {
+        mProcessedBuffers = new SpscRingQueue<>(queueCapacity);
+        mRecycledBuffers = new SpscRingQueue<>(queueCapacity);
+    }
+
+    @Override
+    public void setMaxFrameCount(int maxFrameCount) {
+        if (maxFrameCount > mProcessedBuffers.capacity()) {
+            throw new IllegalArgumentException("max frame count " + maxFrameCount + " exceeds queue capacity "
+                    + mProcessedBuffers.capacity());
+        }
+        super.setMaxFrameCount(maxFrameCount);
+    }
 
     /**
      * 出队一个该Stage处理好的Buffer
      */
     @Override
     public T dequeueOutputBuffer() {
-        synchronized (this) {
-            T t = mProcessedBuffers.poll();
+        long traceStartNs = PipelineTracer.now();
+
+        // 先计数再出队，保证buffer在任意时刻都能被DONE的检测看到
+        mBufferOutedCount.incrementAndGet();
+        T t = mProcessedBuffers.poll();
+        if (t == null) {
+            mBufferOutedCount.decrementAndGet();
+        } else {
+            PipelineTracer.complete(PipelineTracer.CATEGORY_PROVIDER, mTraceDequeueName, traceStartNs,
+                    PipelineTracer.NO_ARG);
+        }
+
+        StageTask currentTask = StageTask.currentTask();
+        if (currentTask != null) {
+            addConsumerTask(currentTask);
+
+            // 读到了数据，说明读取方这一轮有进展，可能还有数据没读完
             if (t != null) {
-                mBufferOutedCount++;
+                currentTask.wakeup();
             }
-            return t;
         }
+        return t;
     }
 
     /**
@@ -55,31 +110,38 @@ public abstract class ProvidedStage<T> extends Stage implements Provider<T> {
      */
     @Override
     public void enqueueOutputBuffer(T buffer) {
-        synchronized (this) {
-            mBufferOutedCount --;
-            mRecycledBuffers.add(buffer);
+        long traceStartNs = PipelineTracer.now();
+
+        // 先进队再减计数，理由同dequeueOutputBuffer
+        if (!mRecycledBuffers.offer(buffer)) {
+            throw new RuntimeException("recycled buffer queue is full, capacity: " + mRecycledBuffers.capacity());
         }
+        mBufferOutedCount.decrementAndGet();
+        wakeupTask();
+        PipelineTracer.complete(PipelineTracer.CATEGORY_PROVIDER, mTraceEnqueueName, traceStartNs,
+                PipelineTracer.NO_ARG);
     }
 
     @CallSuper
     @Override
     public void processFrame() throws ProcessException {
-        List<T> canReuseBuffers;
-        synchronized (this) {
-            canReuseBuffers = new ArrayList<>(mRecycledBuffers);
-            mRecycledBuffers.clear();
+        T buffer;
+        while ((buffer = mRecycledBuffers.poll()) != null) {
+            mCanReuseBuffers.add(buffer);
+        }
+        if (!mCanReuseBuffers.isEmpty()) {
+            recycleBuffers(mCanReuseBuffers);
+            mCanReuseBuffers.clear();
         }
-        recycleBuffers(canReuseBuffers);
 
         mDelayRunQueue.rerun();
 
-        synchronized (this) {
-            if (isAllDataReady()               // 所有数据都准备完成了
-                && mRecycledBuffers.isEmpty()  // 归还回来的buffer都已经做过回收处理
-                && mProcessedBuffers.isEmpty() // 该Stage处理过的数据已经被消费了
-                && mBufferOutedCount == 0) {   // 该Stage所有缓存都归还回来了
-                setState(State.DONE);
-            }
+        // 检测顺序和buffer的流转顺序一致：已处理 -> 被持有 -> 已归还
+        if (isAllDataReady()                   // 所有数据都准备完成了
+            && mProcessedBuffers.isEmpty()     // 该Stage处理过的数据已经被消费了
+            && mBufferOutedCount.get() == 0    // 该Stage所有缓存都归还回来了
+            && mRecycledBuffers.isEmpty()) {   // 归还回来的buffer都已经做过回收处理
+            setState(State.DONE);
         }
     }
 
@@ -88,18 +150,66 @@ public abstract class ProvidedStage<T> extends Stage implements Provider<T> {
      * @param buffer 处理好的数据
      */
     protected void enqueueProcessedBuffer(T buffer) {
+        if (!mProcessedBuffers.offer(buffer)) {
+            throw new RuntimeException("processed buffer queue is full, capacity: " + mProcessedBuffers.capacity());
+        }
+        mMetrics.recordFrameOut();
+        wakeupTask();
+        wakeupConsumerTask();
+    }
+
+    /**
+     * 唤醒读取该Stage数据的任务
+     */
+    protected void wakeupConsumerTask() {
+        StageTask[] tasks = mConsumerTasks;
+        for (StageTask task : tasks) {
+            task.wakeup();
+        }
+    }
+
+    private void addConsumerTask(StageTask task) {
+        StageTask[] tasks = mConsumerTasks;
+        for (StageTask consumerTask : tasks) {
+            if (consumerTask == task) {
+                return;
+            }
+        }
+
+        // 读取者的任务基本不会变化，这里直接复制一份新的数组
         synchronized (this) {
-            mProcessedBuffers.add(buffer);
+            for (StageTask consumerTask : mConsumerTasks) {
+                if (consumerTask == task) {
+                    return;
+                }
+            }
+
+            StageTask[] newTasks = Arrays.copyOf(mConsumerTasks, mConsumerTasks.length + 1);
+            newTasks[newTasks.length - 1] = task;
+            mConsumerTasks = newTasks;
         }
     }
 
+    @Override
+    StageMetrics.Snapshot snapshotMetrics(String taskName) {
+        return mMetrics.snapshot(taskName, getClass().getSimpleName(), mProcessedBuffers.size(),
+                mBufferOutedCount.get());
+    }
+
+    /**
+     * 已被下一个Stage持有的buffer的个数
+     */
+    protected int getBufferOutedCount() {
+        return mBufferOutedCount.get();
+    }
+
     protected void queueRunnable(Runnable runnable) {
         mDelayRunQueue.addRunnable(runnable);
     }
 
     /**
      * 归还回来的数据缓存做回收处理
-     * @param canReuseBuffers 下一个Stage归还回来的buffer
+     * @param canReuseBuffers 下一个Stage归还回来的buffer，该列表会被重复使用，不能在调用之后继续持有
      */
     protected abstract void recycleBuffers(List<T> canReuseBuffers);
 }
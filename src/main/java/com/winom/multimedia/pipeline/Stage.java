@@ -36,6 +36,28 @@ public abstract class Stage {
 
     protected State mState = State.INIT;
 
+    /**
+     * 最多缓存多少帧处理好还没有被读取的数据，默认为{@link #MAX_FRAME_COUNT}
+     */
+    protected int mMaxFrameCount = MAX_FRAME_COUNT;
+
+    /**
+     * 该Stage的运行统计，子类在读入、输出数据的时候需要记录
+     */
+    protected final StageMetrics mMetrics = new StageMetrics();
+
+    /**
+     * {@link com.winom.multimedia.utils.PipelineTracer}中使用的事件名，提前生成好避免记录时分配内存
+     */
+    final String mTraceSetupName = getClass().getSimpleName() + ".setup";
+    final String mTraceProcessName = getClass().getSimpleName() + ".processFrame";
+    final String mTraceReleaseName = getClass().getSimpleName() + ".release";
+
+    /**
+     * 执行该Stage的任务，用于在有新数据的时候唤醒任务
+     */
+    private volatile StageTask mStageTask;
+
     /**
      * 初始化设置
      */
@@ -52,6 +74,24 @@ public abstract class Stage {
      */
     public abstract void release() throws ReleaseException;
 
+    /**
+     * <p>设置最多缓存多少帧处理好还没有被读取的数据</p>
+     * 离线转码时可以调大，让该Stage不用每几帧就等一次下游，需要在setup之前调用
+     */
+    public void setMaxFrameCount(int maxFrameCount) {
+        if (mState != State.INIT) {
+            throw new RuntimeException("only can set max frame count in init state");
+        }
+        if (maxFrameCount <= 0) {
+            throw new IllegalArgumentException("max frame count must be positive: " + maxFrameCount);
+        }
+        mMaxFrameCount = maxFrameCount;
+    }
+
+    public int getMaxFrameCount() {
+        return mMaxFrameCount;
+    }
+
     /**
      * 设置该阶段的状态
      * @param newState 新状态
@@ -61,6 +101,36 @@ public abstract class Stage {
         if (State.DONE == mState) {
             MeLog.i(TAG, "[%s] is done", this);
         }
+
+        // 状态变化也算是有进展，需要让任务再跑一轮
+        wakeupTask();
+    }
+
+    /**
+     * <p>是否需要任务定时来轮询该Stage</p>
+     * 在{@link StageTask.ScheduleMode#EVENT_DRIVEN}模式下，如果Stage的数据来源无法主动通知（比如MediaCodec），
+     * 需要返回true，任务在空闲时就不会一直休眠，而是按照轮询间隔来调用{@link #processFrame()}。
+     */
+    protected boolean isPollingRequired() {
+        return false;
+    }
+
+    /**
+     * 唤醒执行该Stage的任务
+     */
+    protected void wakeupTask() {
+        StageTask task = mStageTask;
+        if (task != null) {
+            task.wakeup();
+        }
+    }
+
+    void attachTask(StageTask task) {
+        mStageTask = task;
+    }
+
+    StageMetrics.Snapshot snapshotMetrics(String taskName) {
+        return mMetrics.snapshot(taskName, getClass().getSimpleName(), 0, 0);
     }
 
     protected boolean isAllDataReady() {
@@ -3,6 +3,7 @@ package com.winom.multimedia.pipeline;
 import com.winom.multimedia.utils.FutureObject;
 import com.winom.multimedia.utils.MeLog;
 
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -40,18 +41,39 @@ public class StageExecutor {
     }
 
     private final Map<StageTask, Future> mTasks;
+    private final List<StageTask> mAllTasks;
+    private final StageScheduler mScheduler;
     private ExecutorListener mExecutorListener;
     private ExecutorService mExecutorService;
 
     public StageExecutor(@NonNull List<StageTask> stageTasks, ExecutorListener listener) {
+        this(stageTasks, listener, null);
+    }
+
+    /**
+     * @param stageTasks 需要执行的任务
+     * @param listener 事件监听
+     * @param scheduler 共享的调度器，所有任务都在调度器的工作线程中执行；为null则每个任务使用一个独立的线程
+     */
+    public StageExecutor(@NonNull List<StageTask> stageTasks, ExecutorListener listener, StageScheduler scheduler) {
         mExecutorListener = listener;
+        mScheduler = scheduler;
         mTasks = new HashMap<>();
+        mAllTasks = new ArrayList<>(stageTasks);
         for (StageTask task : stageTasks) {
             mTasks.put(task, null);
         }
     }
 
     synchronized public void start() {
+        if (mScheduler != null) {
+            // 调度器已经停止时submit会马上回调并从mTasks中移除任务，不能直接遍历mTasks
+            for (int i = 0; i < mAllTasks.size(); ++i) {
+                mScheduler.submit(mAllTasks.get(i), this::onStageTaskFinished);
+            }
+            return;
+        }
+
         mExecutorService = new FixedExecutorService(mTasks.keySet().size());
         for (Map.Entry<StageTask, Future> entry : mTasks.entrySet()) {
             Future future = mExecutorService.submit(entry.getKey());
@@ -59,6 +81,18 @@ public class StageExecutor {
         }
     }
 
+    /**
+     * <p>所有任务中每个Stage的运行统计</p>
+     * 可以在任意线程随时调用，已经结束的任务也会包括在内
+     */
+    public List<StageMetrics.Snapshot> getMetricsSnapshots() {
+        List<StageMetrics.Snapshot> snapshots = new ArrayList<>();
+        for (StageTask task : mAllTasks) {
+            snapshots.addAll(task.getMetricsSnapshots());
+        }
+        return snapshots;
+    }
+
     synchronized public void cancel() {
         for (Map.Entry<StageTask, Future> entry : mTasks.entrySet()) {
             entry.getKey().cancel();
@@ -90,6 +124,14 @@ public class StageExecutor {
             throw new RuntimeException("task finished, but didn't find task in map");
         }
 
+        onStageTaskFinished(finishedTask, error);
+    }
+
+    synchronized private void onStageTaskFinished(StageTask finishedTask, Throwable error) {
+        if (!mTasks.containsKey(finishedTask)) {
+            throw new RuntimeException("task finished, but didn't find task in map");
+        }
+
         MeLog.i(TAG, "task[%s] finished, error: %s", finishedTask.getTaskName(),
                 android.util.Log.getStackTraceString(error));
         mTasks.remove(finishedTask);
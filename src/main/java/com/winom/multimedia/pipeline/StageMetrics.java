@@ -0,0 +1,153 @@
+package com.winom.multimedia.pipeline;
+
+/**
+ * <p>Stage运行时的统计数据</p>
+ * 所有计数都只在执行该Stage的线程中修改，其他线程通过{@link #snapshot}读取，
+ * 读到的数据可能稍微滞后，但不会有锁的开销，可以一直打开。
+ */
+public class StageMetrics {
+    /**
+     * processFrame耗时直方图的桶个数，第i个桶统计耗时在[2^i, 2^(i+1))微秒的次数，
+     * 第0个桶包括小于1微秒的，最后一个桶包括更长的
+     */
+    public static final int HISTOGRAM_BUCKET_COUNT = 16;
+
+    private volatile long mProcessCount = 0;
+    private volatile long mIdleCount = 0;
+    private volatile long mTotalProcessTimeNs = 0;
+    private volatile long mMaxProcessTimeNs = 0;
+    private volatile long mFramesIn = 0;
+    private volatile long mFramesOut = 0;
+    private volatile long mCodecTryAgainCount = 0;
+    private final int[] mProcessTimeHistogram = new int[HISTOGRAM_BUCKET_COUNT];
+
+    /**
+     * 记录读入了一帧数据
+     */
+    public void recordFrameIn() {
+        mFramesIn = mFramesIn + 1;
+    }
+
+    /**
+     * 记录输出了一帧数据
+     */
+    public void recordFrameOut() {
+        mFramesOut = mFramesOut + 1;
+    }
+
+    /**
+     * 记录一次MediaCodec返回了INFO_TRY_AGAIN_LATER（或者没有可用的输入buffer）
+     */
+    public void recordCodecTryAgain() {
+        mCodecTryAgainCount = mCodecTryAgainCount + 1;
+    }
+
+    /**
+     * 目前读入和输出的总帧数，用来判断一次processFrame是否有进展
+     */
+    long getFrameCount() {
+        return mFramesIn + mFramesOut;
+    }
+
+    /**
+     * 记录一次processFrame的调用
+     * @param costNs 耗时
+     * @param isIdle 这次调用没有读入也没有输出数据
+     */
+    void recordProcessFrame(long costNs, boolean isIdle) {
+        mProcessCount = mProcessCount + 1;
+        if (isIdle) {
+            mIdleCount = mIdleCount + 1;
+        }
+
+        mTotalProcessTimeNs = mTotalProcessTimeNs + costNs;
+        if (costNs > mMaxProcessTimeNs) {
+            mMaxProcessTimeNs = costNs;
+        }
+
+        long costUs = costNs / 1000;
+        int bucket = costUs <= 0 ? 0 : 63 - Long.numberOfLeadingZeros(costUs);
+        mProcessTimeHistogram[Math.min(bucket, HISTOGRAM_BUCKET_COUNT - 1)]++;
+    }
+
+    Snapshot snapshot(String taskName, String stageName, int queueDepth, int bufferOutedCount) {
+        return new Snapshot(taskName, stageName, mProcessCount, mIdleCount, mTotalProcessTimeNs,
+                mMaxProcessTimeNs, mProcessTimeHistogram.clone(), mFramesIn, mFramesOut, mCodecTryAgainCount,
+                queueDepth, bufferOutedCount);
+    }
+
+    /**
+     * 某一时刻的统计数据
+     */
+    public static class Snapshot {
+        public final String taskName;
+        public final String stageName;
+
+        /**
+         * processFrame调用的次数，以及其中没有读入也没有输出数据的次数
+         */
+        public final long processCount;
+        public final long idleCount;
+
+        /**
+         * processFrame的总耗时和最大耗时
+         */
+        public final long totalProcessTimeNs;
+        public final long maxProcessTimeNs;
+
+        /**
+         * processFrame耗时的直方图，见{@link #HISTOGRAM_BUCKET_COUNT}
+         */
+        public final int[] processTimeHistogram;
+
+        public final long framesIn;
+        public final long framesOut;
+        public final long codecTryAgainCount;
+
+        /**
+         * 处理好了等待下一个Stage读取的buffer个数，只有{@link ProvidedStage}才有
+         */
+        public final int queueDepth;
+
+        /**
+         * 被下一个Stage持有还没有归还的buffer个数，只有{@link ProvidedStage}才有
+         */
+        public final int bufferOutedCount;
+
+        Snapshot(String taskName, String stageName, long processCount, long idleCount, long totalProcessTimeNs,
+                 long maxProcessTimeNs, int[] processTimeHistogram, long framesIn, long framesOut,
+                 long codecTryAgainCount, int queueDepth, int bufferOutedCount) {
+            this.taskName = taskName;
+            this.stageName = stageName;
+            this.processCount = processCount;
+            this.idleCount = idleCount;
+            this.totalProcessTimeNs = totalProcessTimeNs;
+            this.maxProcessTimeNs = maxProcessTimeNs;
+            this.processTimeHistogram = processTimeHistogram;
+            this.framesIn = framesIn;
+            this.framesOut = framesOut;
+            this.codecTryAgainCount = codecTryAgainCount;
+            this.queueDepth = queueDepth;
+            this.bufferOutedCount = bufferOutedCount;
+        }
+
+        /**
+         * 空转的比例，越高说明该Stage越多时候在等数据
+         */
+        public double getIdleRatio() {
+            return processCount == 0 ? 0 : (double) idleCount / processCount;
+        }
+
+        public long getAverageProcessTimeNs() {
+            return processCount == 0 ? 0 : totalProcessTimeNs / processCount;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("[%s/%s] process: %d, idle: %.2f, avg: %dus, max: %dus, in: %d, out: %d, " +
+                            "tryAgain: %d, queue: %d, outed: %d", taskName, stageName, processCount, getIdleRatio(),
+                    getAverageProcessTimeNs() / 1000, maxProcessTimeNs / 1000, framesIn, framesOut,
+                    codecTryAgainCount, queueDepth, bufferOutedCount);
+        }
+    }
+}
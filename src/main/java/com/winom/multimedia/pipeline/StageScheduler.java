@@ -0,0 +1,302 @@
+package com.winom.multimedia.pipeline;
+
+import com.winom.multimedia.utils.MeLog;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * <p>多个{@link StageExecutor}共享的调度器</p>
+ * 固定个数的工作线程轮流执行所有任务，每次执行任务中的一轮{@link Stage#processFrame()}。
+ * 同一个任务同时只会在一个线程中执行，所以每个Stage仍然是单线程访问的。
+ * 会阻塞的Stage（比如等待另一个任务结果的setup）会一直占用一个工作线程，线程数需要大于这类Stage的个数。
+ */
+@SuppressWarnings("WeakerAccess")
+public class StageScheduler {
+    private static final String TAG = "StageScheduler";
+
+    /**
+     * 任务结束的回调，在工作线程中调用
+     */
+    interface TaskFinishListener {
+        void onTaskFinished(StageTask task, Throwable error);
+    }
+
+    private static StageScheduler sDefaultScheduler;
+
+    private final ReentrantLock mLock = new ReentrantLock();
+    private final Condition mTaskAvailable = mLock.newCondition();
+
+    /**
+     * 可以马上执行的任务
+     */
+    private final Queue<TaskEntry> mReadyTasks = new ArrayDeque<>();
+
+    /**
+     * 需要等待一段时间再执行的任务（轮询），按照执行时间排序
+     */
+    private final PriorityQueue<TaskEntry> mDelayedTasks = new PriorityQueue<>(16,
+            (lhs, rhs) -> Long.compare(lhs.mRunAtNanos, rhs.mRunAtNanos));
+
+    /**
+     * 已经提交、还没有结束的任务，停止调度器时需要通知它们
+     */
+    private final List<TaskEntry> mActiveTasks = new ArrayList<>();
+
+    private final List<Thread> mWorkers;
+    private boolean mIsShutdown = false;
+
+    /**
+     * 进程内默认的调度器，工作线程数为CPU核数
+     */
+    synchronized public static StageScheduler getDefault() {
+        if (sDefaultScheduler == null) {
+            sDefaultScheduler = new StageScheduler(Runtime.getRuntime().availableProcessors());
+        }
+        return sDefaultScheduler;
+    }
+
+    public StageScheduler(int workerCount) {
+        if (workerCount <= 0) {
+            throw new IllegalArgumentException("worker count must be positive: " + workerCount);
+        }
+
+        mWorkers = new ArrayList<>(workerCount);
+        for (int i = 0; i < workerCount; ++i) {
+            Thread worker = new Thread(this::workerLoop, "StageWorker-" + i);
+            worker.setDaemon(true);
+            mWorkers.add(worker);
+            worker.start();
+        }
+    }
+
+    /**
+     * <p>停止所有的工作线程，还未结束的任务不会再执行</p>
+     * 这些任务的{@link TaskFinishListener}会收到{@link CancellationException}，等待它们结束的一方不会一直等下去；
+     * 任务中的Stage不会再release。正在执行的任务在这一轮结束后通知。
+     */
+    public void shutdown() {
+        List<TaskEntry> droppedTasks = new ArrayList<>();
+        mLock.lock();
+        try {
+            mIsShutdown = true;
+            mReadyTasks.clear();
+            mDelayedTasks.clear();
+            for (int i = mActiveTasks.size() - 1; i >= 0; --i) {
+                TaskEntry entry = mActiveTasks.get(i);
+                if (entry.mState != TaskEntry.STATE_RUNNING) {
+                    entry.finish();
+                    droppedTasks.add(entry);
+                }
+            }
+            mTaskAvailable.signalAll();
+        } finally {
+            mLock.unlock();
+        }
+        MeLog.i(TAG, "scheduler shutdown, %d tasks dropped", droppedTasks.size());
+
+        for (int i = 0; i < droppedTasks.size(); ++i) {
+            notifyTaskDropped(droppedTasks.get(i));
+        }
+    }
+
+    public int getWorkerCount() {
+        return mWorkers.size();
+    }
+
+    void submit(StageTask task, TaskFinishListener listener) {
+        TaskEntry entry = new TaskEntry(task, listener);
+        mLock.lock();
+        try {
+            if (!mIsShutdown) {
+                mActiveTasks.add(entry);
+                task.attachSchedulerEntry(entry);
+                entry.wakeup();
+                return;
+            }
+        } finally {
+            mLock.unlock();
+        }
+        notifyTaskDropped(entry);
+    }
+
+    private void workerLoop() {
+        while (true) {
+            TaskEntry entry = takeTask();
+            if (entry == null) {
+                return;
+            }
+
+            long result;
+            Throwable error = null;
+            try {
+                result = entry.mTask.runSlice();
+            } catch (Throwable e) {
+                result = StageTask.SLICE_FINISHED;
+                error = e;
+            }
+
+            boolean isDropped = onSliceFinished(entry, result);
+            if (result == StageTask.SLICE_FINISHED) {
+                notifyTaskFinished(entry, error);
+            } else if (isDropped) {
+                notifyTaskDropped(entry);
+            }
+        }
+    }
+
+    private void notifyTaskDropped(TaskEntry entry) {
+        MeLog.w(TAG, "task(%s) dropped, scheduler is shutdown", entry.mTask.getTaskName());
+        notifyTaskFinished(entry, new CancellationException("scheduler is shutdown"));
+    }
+
+    private void notifyTaskFinished(TaskEntry entry, Throwable error) {
+        try {
+            entry.mListener.onTaskFinished(entry.mTask, error);
+        } catch (RuntimeException e) {
+            // 回调出错不能让工作线程退出，否则其他任务都会受影响
+            MeLog.e(TAG, "notify task finished failed", e);
+        }
+    }
+
+    /**
+     * 取出一个可以执行的任务，没有的话就等待
+     * @return 调度器已经停止则返回null
+     */
+    private TaskEntry takeTask() {
+        mLock.lock();
+        try {
+            while (!mIsShutdown) {
+                long now = System.nanoTime();
+                TaskEntry delayed = mDelayedTasks.peek();
+                while (delayed != null && delayed.mRunAtNanos <= now) {
+                    mDelayedTasks.poll();
+                    delayed.mState = TaskEntry.STATE_READY;
+                    mReadyTasks.add(delayed);
+                    delayed = mDelayedTasks.peek();
+                }
+
+                TaskEntry entry = mReadyTasks.poll();
+                if (entry != null) {
+                    entry.mState = TaskEntry.STATE_RUNNING;
+                    return entry;
+                }
+
+                if (delayed == null) {
+                    mTaskAvailable.awaitUninterruptibly();
+                } else {
+                    try {
+                        mTaskAvailable.awaitNanos(delayed.mRunAtNanos - now);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return null;
+                    }
+                }
+            }
+            return null;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * @return 任务还没有结束，但是调度器已经停止了，不会再执行
+     */
+    private boolean onSliceFinished(TaskEntry entry, long result) {
+        mLock.lock();
+        try {
+            boolean hasWakeup = entry.mHasWakeup;
+            entry.mHasWakeup = false;
+
+            if (result == StageTask.SLICE_FINISHED) {
+                entry.finish();
+            } else if (mIsShutdown) {
+                entry.finish();
+                return true;
+            } else if (result == 0 || hasWakeup) {
+                entry.mState = TaskEntry.STATE_READY;
+                mReadyTasks.add(entry);
+                mTaskAvailable.signal();
+            } else if (result == StageTask.SLICE_WAIT_FOR_WORK) {
+                entry.mState = TaskEntry.STATE_IDLE;
+            } else {
+                entry.mState = TaskEntry.STATE_DELAYED;
+                entry.mRunAtNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(result);
+                mDelayedTasks.add(entry);
+                mTaskAvailable.signal();
+            }
+            return false;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * 任务在调度器中的状态，所有字段都只在{@link #mLock}中访问
+     */
+    final class TaskEntry {
+        private static final int STATE_IDLE = 0;
+        private static final int STATE_READY = 1;
+        private static final int STATE_DELAYED = 2;
+        private static final int STATE_RUNNING = 3;
+        private static final int STATE_FINISHED = 4;
+
+        private final StageTask mTask;
+        private final TaskFinishListener mListener;
+
+        private int mState = STATE_IDLE;
+        private long mRunAtNanos;
+
+        /**
+         * 执行过程中是否被唤醒过
+         */
+        private boolean mHasWakeup = false;
+
+        private TaskEntry(StageTask task, TaskFinishListener listener) {
+            mTask = task;
+            mListener = listener;
+        }
+
+        /**
+         * 任务结束或者被丢弃，需要持有{@link #mLock}
+         */
+        private void finish() {
+            mState = STATE_FINISHED;
+            mActiveTasks.remove(this);
+            mTask.attachSchedulerEntry(null);
+        }
+
+        /**
+         * 任务有新的事件需要处理，让它尽快被执行
+         */
+        void wakeup() {
+            mLock.lock();
+            try {
+                switch (mState) {
+                case STATE_DELAYED:
+                    mDelayedTasks.remove(this);
+                    // fall through
+                case STATE_IDLE:
+                    mState = STATE_READY;
+                    mReadyTasks.add(this);
+                    mTaskAvailable.signal();
+                    break;
+                case STATE_RUNNING:
+                    mHasWakeup = true;
+                    break;
+                default:
+                    break;
+                }
+            } finally {
+                mLock.unlock();
+            }
+        }
+    }
+}
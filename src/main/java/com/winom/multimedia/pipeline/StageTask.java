@@ -6,21 +6,66 @@ import com.winom.multimedia.exceptions.ProcessException;
 import com.winom.multimedia.exceptions.ReleaseException;
 import com.winom.multimedia.exceptions.SetupException;
 import com.winom.multimedia.utils.MeLog;
+import com.winom.multimedia.utils.PipelineTracer;
 
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
 
 public class StageTask implements Runnable {
     private static final String TAG = "StageTask";
     private static final int DEFAULT_FRAME_PROCESS_INTERVAL = 3;
 
+    /**
+     * 当前线程正在执行的任务，Provider通过它来知道是哪个任务在读取数据
+     */
+    private static final ThreadLocal<StageTask> sCurrentTask = new ThreadLocal<>();
+
+    static final long SLICE_FINISHED = -2;
+    static final long SLICE_WAIT_FOR_WORK = -1;
+
+    /**
+     * 任务的调度方式
+     */
+    public enum ScheduleMode {
+        /**
+         * 每一轮处理完之后固定休眠，直到满一个处理间隔
+         */
+        POLLING,
+
+        /**
+         * 只有在有新数据、新命令或者状态变化的时候才会被唤醒，空闲时一直休眠
+         */
+        EVENT_DRIVEN
+    }
+
     private final List<Stage> mStages;
     private final String mTaskName;
     private final int mFrameProcessInterval;
+    private final ScheduleMode mScheduleMode;
 
-    private boolean mIsPaused = false;
-    private boolean mIsCanceled = false;
+    private volatile boolean mIsPaused = false;
+    private volatile boolean mIsCanceled = false;
+
+    /**
+     * 上一轮处理开始后，是否有新的事件到来
+     */
+    private volatile boolean mHasPendingWork = false;
+    private volatile Thread mRunningThread;
+
+    /**
+     * 上一轮是否有Stage需要轮询，只在执行线程中访问
+     */
+    private boolean mIsPollingRequired = false;
+
+    /**
+     * 在共享调度器中执行时的调度信息，为null表示使用独立线程执行
+     */
+    private volatile StageScheduler.TaskEntry mSchedulerEntry;
+    private boolean mIsSliceStarted = false;
+    private long mSliceStartTime;
 
     public StageTask(String runnableName) {
         this(runnableName, null, DEFAULT_FRAME_PROCESS_INTERVAL);
@@ -34,22 +79,43 @@ public class StageTask implements Runnable {
         this(runnableName, stages, DEFAULT_FRAME_PROCESS_INTERVAL);
     }
 
+    public StageTask(String runnableName, List<Stage> stages, ScheduleMode scheduleMode) {
+        this(runnableName, stages, DEFAULT_FRAME_PROCESS_INTERVAL, scheduleMode);
+    }
+
     public StageTask(String runnableName, List<Stage> stages, int frameProcessInterval) {
+        this(runnableName, stages, frameProcessInterval, ScheduleMode.POLLING);
+    }
+
+    /**
+     * @param runnableName 任务名，也会作为执行线程的名字
+     * @param stages 该任务中执行的Stage
+     * @param frameProcessInterval 轮询的间隔，{@link ScheduleMode#EVENT_DRIVEN}模式下只对需要轮询的Stage生效
+     * @param scheduleMode 调度方式
+     */
+    public StageTask(String runnableName, List<Stage> stages, int frameProcessInterval, ScheduleMode scheduleMode) {
         mTaskName = runnableName;
         mFrameProcessInterval = frameProcessInterval;
+        mScheduleMode = scheduleMode;
         if (stages != null) {
             mStages = new ArrayList<>(stages);
         } else {
             mStages = new ArrayList<>();
         }
+
+        for (Stage stage : mStages) {
+            stage.attachTask(this);
+        }
     }
 
     public void addStage(Stage stage) {
         mStages.add(stage);
+        stage.attachTask(this);
     }
 
     public void cancel() {
         mIsCanceled = true;
+        wakeup();
         MeLog.i(TAG, "cancel task(%s)", mTaskName);
     }
 
@@ -60,6 +126,7 @@ public class StageTask implements Runnable {
 
     public void resume() {
         mIsPaused = false;
+        wakeup();
         MeLog.i(TAG, "resume task(%s)", mTaskName);
     }
 
@@ -67,9 +134,68 @@ public class StageTask implements Runnable {
         return mTaskName;
     }
 
+    public ScheduleMode getScheduleMode() {
+        return mScheduleMode;
+    }
+
+    /**
+     * 该任务中所有Stage的运行统计
+     */
+    public List<StageMetrics.Snapshot> getMetricsSnapshots() {
+        List<StageMetrics.Snapshot> snapshots = new ArrayList<>(mStages.size());
+        for (Stage stage : mStages) {
+            snapshots.add(stage.snapshotMetrics(mTaskName));
+        }
+        return snapshots;
+    }
+
+    /**
+     * 通知该任务有新的事件需要处理，可以在任意线程调用
+     */
+    void wakeup() {
+        mHasPendingWork = true;
+        Thread thread = mRunningThread;
+        if (thread == Thread.currentThread()) {
+            // 执行线程自己在一轮结束后会检查mHasPendingWork
+            return;
+        }
+
+        StageScheduler.TaskEntry entry = mSchedulerEntry;
+        if (entry != null) {
+            // 轮询模式下和独立线程一样，固定间隔执行，不需要唤醒
+            if (mScheduleMode == ScheduleMode.EVENT_DRIVEN || mIsCanceled) {
+                entry.wakeup();
+            }
+        } else if (thread != null) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    /**
+     * 当前线程正在执行的任务，如果不是在任务线程中则返回null
+     */
+    static StageTask currentTask() {
+        return sCurrentTask.get();
+    }
+
+    void attachSchedulerEntry(StageScheduler.TaskEntry entry) {
+        mSchedulerEntry = entry;
+    }
+
     @Override
     public void run() {
         Thread.currentThread().setName(mTaskName);
+        mRunningThread = Thread.currentThread();
+        sCurrentTask.set(this);
+        try {
+            runStages();
+        } finally {
+            sCurrentTask.remove();
+            mRunningThread = null;
+        }
+    }
+
+    private void runStages() {
         long startTime = SystemClock.elapsedRealtime();
 
         try {
@@ -93,25 +219,84 @@ public class StageTask implements Runnable {
         MeLog.i(TAG, "[%s] stage cost: %d", mTaskName, (SystemClock.elapsedRealtime() - startTime));
     }
 
-    private void processFrames() throws ProcessException {
-        boolean isAllDone = false;
-        do {
-            if (mIsCanceled) {
-                break;
+    /**
+     * <p>在共享调度器中执行一次，每次只处理一轮</p>
+     * 同一个任务同时只会有一个线程来调用
+     * @return {@link #SLICE_FINISHED}表示任务结束了，{@link #SLICE_WAIT_FOR_WORK}表示等待唤醒，
+     *         其他值表示多少毫秒后需要再执行一次
+     */
+    long runSlice() {
+        mRunningThread = Thread.currentThread();
+        sCurrentTask.set(this);
+        try {
+            if (!mIsSliceStarted) {
+                mIsSliceStarted = true;
+                mSliceStartTime = SystemClock.elapsedRealtime();
+                try {
+                    setup();
+                } catch (SetupException e) {
+                    throw new RuntimeException(e);
+                }
+                MeLog.i(TAG, "start process task(%s)", mTaskName);
             }
 
             long frameStartTime = SystemClock.elapsedRealtime();
+            mHasPendingWork = false;
+
+            boolean isFinished = mIsCanceled;
+            if (!isFinished) {
+                try {
+                    isFinished = processStages();
+                } catch (ProcessException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+
+            if (isFinished) {
+                try {
+                    release();
+                } catch (ReleaseException e) {
+                    throw new RuntimeException(e);
+                }
+                MeLog.i(TAG, "[%s] stage cost: %d", mTaskName, (SystemClock.elapsedRealtime() - mSliceStartTime));
+                return SLICE_FINISHED;
+            }
+
+            if (mIsCanceled) {
+                return 0;
+            }
 
-            if (!mIsPaused) {
-                isAllDone = true;
-                for (Stage stage : mStages) {
-                    if (!stage.isDone()) {
-                        isAllDone = false;
-                        stage.processFrame();
-                    }
+            if (mScheduleMode == ScheduleMode.EVENT_DRIVEN) {
+                if (mHasPendingWork) {
+                    return 0;
+                }
+                if (!mIsPollingRequired || mIsPaused) {
+                    return SLICE_WAIT_FOR_WORK;
                 }
             }
 
+            long frameCost = SystemClock.elapsedRealtime() - frameStartTime;
+            return Math.max(0, mFrameProcessInterval - frameCost);
+        } finally {
+            sCurrentTask.remove();
+            mRunningThread = null;
+        }
+    }
+
+    private void processFrames() throws ProcessException {
+        while (!mIsCanceled) {
+            long frameStartTime = SystemClock.elapsedRealtime();
+            mHasPendingWork = false;
+
+            if (processStages()) {
+                break;
+            }
+
+            if (mScheduleMode == ScheduleMode.EVENT_DRIVEN) {
+                waitForWork(mIsPollingRequired && !mIsPaused);
+                continue;
+            }
+
             // 如果一帧的处理时长太短，增加sleep，防止占用太高CPU。
             long frameCost = SystemClock.elapsedRealtime() - frameStartTime;
             if (frameCost < mFrameProcessInterval) {
@@ -121,13 +306,68 @@ public class StageTask implements Runnable {
                     Thread.currentThread().interrupt();
                 }
             }
-        } while (!isAllDone);
+        }
+    }
+
+    /**
+     * 所有未完成的Stage都处理一帧
+     * @return 所有Stage是否都已经完成了
+     */
+    private boolean processStages() throws ProcessException {
+        mIsPollingRequired = false;
+        if (mIsPaused) {
+            return false;
+        }
+
+        boolean isAllDone = true;
+        for (int i = 0; i < mStages.size(); ++i) {
+            Stage stage = mStages.get(i);
+            if (!stage.isDone()) {
+                isAllDone = false;
+                long frameCount = stage.mMetrics.getFrameCount();
+                long startTime = System.nanoTime();
+                stage.processFrame();
+                stage.mMetrics.recordProcessFrame(System.nanoTime() - startTime,
+                        frameCount == stage.mMetrics.getFrameCount());
+                PipelineTracer.complete(PipelineTracer.CATEGORY_STAGE, stage.mTraceProcessName, startTime,
+                        PipelineTracer.NO_ARG);
+                mIsPollingRequired |= stage.isPollingRequired();
+            }
+        }
+        return isAllDone;
+    }
+
+    /**
+     * 休眠到有新的事件到来
+     * @param isPollingRequired 有Stage需要轮询，最多只休眠一个处理间隔
+     */
+    private void waitForWork(boolean isPollingRequired) {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(mFrameProcessInterval);
+        while (!mHasPendingWork && !mIsCanceled) {
+            if (!isPollingRequired) {
+                LockSupport.park(this);
+            } else {
+                long remain = deadline - System.nanoTime();
+                if (remain <= 0) {
+                    break;
+                }
+                LockSupport.parkNanos(this, remain);
+            }
+
+            if (Thread.interrupted()) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
     }
 
     private void setup() throws SetupException {
         MeLog.i(TAG, "setup task(%s)", mTaskName);
         for (Stage stage : mStages) {
+            long startTime = PipelineTracer.now();
             stage.setup();
+            PipelineTracer.complete(PipelineTracer.CATEGORY_STAGE, stage.mTraceSetupName, startTime,
+                    PipelineTracer.NO_ARG);
         }
         MeLog.i(TAG, "task(%s) setupped", mTaskName);
     }
@@ -135,7 +375,10 @@ public class StageTask implements Runnable {
     private void release() throws ReleaseException {
         MeLog.i(TAG, "release task(%s)", mTaskName);
         for (Stage stage : mStages) {
+            long startTime = PipelineTracer.now();
             stage.release();
+            PipelineTracer.complete(PipelineTracer.CATEGORY_STAGE, stage.mTraceReleaseName, startTime,
+                    PipelineTracer.NO_ARG);
         }
         MeLog.i(TAG, "task(%s) released", mTaskName);
     }
@@ -9,13 +9,14 @@ import android.os.SystemClock;
 
 import com.winom.multimedia.exceptions.ProcessException;
 import com.winom.multimedia.exceptions.SetupException;
+import com.winom.multimedia.pipeline.BufferSink;
 import com.winom.multimedia.pipeline.ProvidedStage;
 import com.winom.multimedia.source.Frame;
 import com.winom.multimedia.utils.MeLog;
 import com.winom.multimedia.utils.MediaConstants;
 
 import java.nio.ByteBuffer;
-import java.util.LinkedList;
+import java.util.ArrayDeque;
 import java.util.List;
 import java.util.Queue;
 import java.util.concurrent.TimeUnit;
@@ -28,21 +29,41 @@ public class AudioRecorder extends ProvidedStage<Frame> {
 
     private final int mSampleRate;
     private final int mChannelCount;
-    private final Queue<Frame> mFreeFrames = new LinkedList<>();
-
-    private long mStartTick = -1;
-    private int mByteCountPreMs;
+    private final Queue<Frame> mFreeFrames = new ArrayDeque<>(MAX_FRAME_COUNT);
+
+    /**
+     * 不为null时直接把数据读到下游（编码器）借出的buffer中，不再通过自己的buffer供给数据
+     */
+    private final BufferSink<Frame> mInputSink;
+    private boolean mIsStopRequested = false;
+
+    /**
+     * 第一个字节的时间戳，单位为微秒
+     */
+    private long mStartTimeUs = -1;
+    private long mByteCountPreSecond;
+    private int mFrameByteSize;
     private long mByteCountRead = 0;
     private AudioRecord mAudioRecord;
 
     public AudioRecorder(int sampleRate, int channelCnt) {
+        this(sampleRate, channelCnt, null);
+    }
+
+    /**
+     * @param inputSink 直接写入的下游，比如{@link com.winom.multimedia.encoder.Encoder#getInputBufferSink()}
+     */
+    public AudioRecorder(int sampleRate, int channelCnt, BufferSink<Frame> inputSink) {
         mSampleRate = sampleRate;
         mChannelCount = channelCnt;
+        mInputSink = inputSink;
     }
 
     @Override
     protected void recycleBuffers(List<Frame> canReuseBuffers) {
-        mFreeFrames.addAll(canReuseBuffers);
+        for (int i = 0; i < canReuseBuffers.size(); ++i) {
+            mFreeFrames.add(canReuseBuffers.get(i));
+        }
     }
 
     @Override
@@ -55,10 +76,12 @@ public class AudioRecorder extends ProvidedStage<Frame> {
         }
         mAudioRecord.startRecording();
 
-        mByteCountPreMs = (int) (mSampleRate / MediaConstants.MS_PER_SECOND * mChannelCount * AUDIO_FORMAT_IN_BYTE);
-        int bufferSize = MediaConstants.DURATION_PRE_AUDIO_FRAME * mByteCountPreMs;
-        for (int i = 0; i < MAX_FRAME_COUNT; ++i) {
-            mFreeFrames.add(new Frame(ByteBuffer.allocateDirect(bufferSize)));
+        mByteCountPreSecond = (long) mSampleRate * mChannelCount * AUDIO_FORMAT_IN_BYTE;
+        // 按采样数计算每帧的大小，不会把一组交错的多声道采样拆开
+        int sampleCount = (int) (mSampleRate * MediaConstants.DURATION_PRE_AUDIO_FRAME / MediaConstants.MS_PER_SECOND);
+        mFrameByteSize = sampleCount * mChannelCount * AUDIO_FORMAT_IN_BYTE;
+        for (int i = 0; mInputSink == null && i < mMaxFrameCount; ++i) {
+            mFreeFrames.add(new Frame(ByteBuffer.allocateDirect(mFrameByteSize)));
         }
 
         Process.setThreadPriority(Process.THREAD_PRIORITY_URGENT_AUDIO);
@@ -68,32 +91,56 @@ public class AudioRecorder extends ProvidedStage<Frame> {
     @Override
     public void processFrame() throws ProcessException {
         super.processFrame();
-        Frame frame = mFreeFrames.poll();
+        if (isDone()) {
+            return;
+        }
+
+        Frame frame = mInputSink != null ? mInputSink.dequeueInputBuffer() : mFreeFrames.poll();
         if (frame == null) {
             return;
         }
 
-        if (mState == State.ALL_DATA_READY) {
+        if (mState == State.ALL_DATA_READY || mIsStopRequested) {
             frame.flags = MediaCodec.BUFFER_FLAG_END_OF_STREAM;
             frame.size = 0;
         } else {
-            frame.size = mAudioRecord.read(frame.buffer, frame.buffer.capacity());
-            MeLog.d(TAG, "read buffer size: %d", frame.size);
+            frame.offset = 0;
+            frame.size = mAudioRecord.read(frame.buffer, Math.min(frame.buffer.capacity(), mFrameByteSize));
+            if (MeLog.isLoggable(MeLog.LEVEL_DEBUG)) {
+                MeLog.d(TAG, "read buffer size: %d", frame.size);
+            }
         }
 
-        // 根据开始时间还有读取的数据来计算时间戳
-        if (mStartTick == -1) {
-            long now = TimeUnit.MICROSECONDS.toMillis(SystemClock.elapsedRealtimeNanos());
-            mStartTick = now - frame.size / mByteCountPreMs;
+        // 根据开始时间还有读取的数据来计算时间戳，按字节数推算到微秒，下游合并PCM时推算的时间戳才能对上
+        if (mStartTimeUs == -1) {
+            long nowUs = TimeUnit.NANOSECONDS.toMicros(SystemClock.elapsedRealtimeNanos());
+            mStartTimeUs = nowUs - bytesToUs(frame.size);
         }
-        frame.presentationTimeUs = mStartTick + mByteCountRead / mByteCountPreMs;
+        frame.presentationTimeUs = mStartTimeUs + bytesToUs(mByteCountRead);
         mByteCountRead += frame.size;
 
-        enqueueProcessedBuffer(frame);
+        if (mInputSink == null) {
+            enqueueProcessedBuffer(frame);
+        } else {
+            mInputSink.queueInputBuffer(frame);
+            mMetrics.recordFrameOut();
+            if (mIsStopRequested) {
+                // 没有自己的buffer需要等待归还，结束标记交给下游后就完成了
+                setState(State.DONE);
+            }
+        }
+    }
+
+    private long bytesToUs(long byteCount) {
+        return byteCount * TimeUnit.SECONDS.toMicros(1) / mByteCountPreSecond;
     }
 
     public void stop() {
-        queueRunnable(() -> setState(State.ALL_DATA_READY));
+        if (mInputSink != null) {
+            queueRunnable(() -> mIsStopRequested = true);
+        } else {
+            queueRunnable(() -> setState(State.ALL_DATA_READY));
+        }
     }
 
     @Override
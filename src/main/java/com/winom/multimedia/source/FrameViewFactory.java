@@ -0,0 +1,50 @@
+package com.winom.multimedia.source;
+
+import com.winom.multimedia.pipeline.BroadcastProvider;
+
+import java.nio.ByteBuffer;
+
+/**
+ * <p>给{@link BroadcastProvider}使用，为每个读取者创建自己的Frame</p>
+ * 视图的buffer是上游buffer的{@link ByteBuffer#duplicate()}，读取者修改Frame的字段、buffer的position和limit
+ * 不会影响其他读取者；buffer中的数据仍然是共享的，不能修改。
+ */
+public class FrameViewFactory implements BroadcastProvider.ViewFactory<Frame> {
+    @Override
+    public Frame createView(Frame frame) {
+        FrameView view = new FrameView();
+        updateView(view, frame);
+        return view;
+    }
+
+    @Override
+    public void updateView(Frame view, Frame frame) {
+        FrameView frameView = (FrameView) view;
+
+        // 上游复用Frame时可能换了buffer，比如MediaCodec的输出buffer，只有这时才重新创建duplicate
+        if (frameView.mSource != frame.buffer) {
+            frameView.mSource = frame.buffer;
+            frameView.buffer = frame.buffer != null ? frame.buffer.duplicate() : null;
+        } else if (frame.buffer != null) {
+            frameView.buffer.limit(frame.buffer.limit());
+            frameView.buffer.position(frame.buffer.position());
+        }
+
+        frameView.bufferIndex = frame.bufferIndex;
+        frameView.offset = frame.offset;
+        frameView.size = frame.size;
+        frameView.presentationTimeUs = frame.presentationTimeUs;
+        frameView.flags = frame.flags;
+    }
+
+    private static class FrameView extends Frame {
+        /**
+         * 视图的buffer是从哪个buffer duplicate出来的
+         */
+        private ByteBuffer mSource;
+
+        private FrameView() {
+            super(null);
+        }
+    }
+}
@@ -0,0 +1,211 @@
+package com.winom.multimedia.utils;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * <p>异步输出日志的{@link MeLog.ILog}</p>
+ * 调用线程只把格式化好的日志放进无锁的环形缓存，由后台线程交给真正的ILog输出，
+ * 输出日志（写文件、logcat）再慢也不会阻塞编码、读取数据的线程。缓存满了的时候新的日志会被丢弃，
+ * 丢弃的条数会在之后输出一条警告。
+ * <pre>
+ * MeLog.setLogImpl(new AsyncLog(fileLog, 1024));
+ * </pre>
+ */
+public class AsyncLog implements MeLog.ILog {
+    private static final String TAG = "AsyncLog";
+
+    /**
+     * 停止时后台线程在{@link #mTail}上设置的标记，之后调用线程不能再占用槽位
+     */
+    private static final long CLOSED_FLAG = Long.MIN_VALUE;
+
+    private final MeLog.ILog mTarget;
+    private final int mMask;
+
+    /**
+     * 每个槽位的序号：等于写入位置表示可以写入，等于写入位置+1表示已经写好可以读取
+     */
+    private final AtomicLongArray mSequences;
+    private final int[] mLevels;
+    private final String[] mTags;
+    private final String[] mTexts;
+
+    /**
+     * 下一个写入位置，多个线程竞争，停止后带有{@link #CLOSED_FLAG}
+     */
+    private final AtomicLong mTail = new AtomicLong(0);
+
+    /**
+     * 下一个读取位置，只有后台线程会访问
+     */
+    private long mHead = 0;
+
+    private final AtomicLong mDroppedCount = new AtomicLong(0);
+    private final Thread mWriterThread;
+    private volatile boolean mIsWaiting = false;
+    private volatile boolean mIsStopped = false;
+
+    /**
+     * @param target 真正输出日志的ILog
+     * @param capacity 最多缓存多少条日志，会向上取到2的幂
+     */
+    public AsyncLog(MeLog.ILog target, int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        }
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+
+        mTarget = target;
+        mMask = size - 1;
+        mSequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; ++i) {
+            mSequences.set(i, i);
+        }
+        mLevels = new int[size];
+        mTags = new String[size];
+        mTexts = new String[size];
+
+        mWriterThread = new Thread(this::writerLoop, "MeLog-Async");
+        mWriterThread.setDaemon(true);
+        mWriterThread.start();
+    }
+
+    @Override
+    public void logWriter(int level, String tag, String text) {
+        if (mIsStopped) {
+            mTarget.logWriter(level, tag, text);
+            return;
+        }
+
+        long tail;
+        int index;
+        while (true) {
+            tail = mTail.get();
+            if ((tail & CLOSED_FLAG) != 0) {
+                // 后台线程已经输出完最后的日志
+                mTarget.logWriter(level, tag, text);
+                return;
+            }
+
+            index = (int) tail & mMask;
+            long diff = mSequences.get(index) - tail;
+            if (diff < 0) {
+                // 后台线程还没有读走，丢弃这条日志
+                mDroppedCount.incrementAndGet();
+                return;
+            }
+
+            if (diff == 0 && mTail.compareAndSet(tail, tail + 1)) {
+                break;
+            }
+        }
+
+        mLevels[index] = level;
+        mTags[index] = tag;
+        mTexts[index] = text;
+        // 这里必须是volatile写，和后面读mIsWaiting之间需要StoreLoad屏障，否则后台线程可能错过这条日志而休眠
+        mSequences.set(index, tail + 1);
+
+        if (mIsWaiting) {
+            LockSupport.unpark(mWriterThread);
+        }
+    }
+
+    /**
+     * 停止后台线程，缓存中剩下的日志会在返回之前输出，之后的日志直接同步输出
+     */
+    public void stop() {
+        mIsStopped = true;
+        LockSupport.unpark(mWriterThread);
+        try {
+            mWriterThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public long getDroppedCount() {
+        return mDroppedCount.get();
+    }
+
+    private void writerLoop() {
+        long reportedDropCount = 0;
+        while (true) {
+            boolean hasWritten = drain();
+            reportedDropCount = reportDroppedCount(reportedDropCount);
+
+            if (hasWritten) {
+                continue;
+            }
+
+            if (mIsStopped) {
+                closeAndDrain();
+                reportDroppedCount(reportedDropCount);
+                return;
+            }
+
+            mIsWaiting = true;
+            if (!hasPendingRecord() && !mIsStopped) {
+                LockSupport.park(this);
+            }
+            mIsWaiting = false;
+        }
+    }
+
+    /**
+     * <p>不再让调用线程占用槽位，并输出所有已经被占用的槽位中的日志</p>
+     * 调用线程可能在停止之前占用了槽位、还没有写完，需要等它写完，不能只输出当前已经写好的日志
+     */
+    private void closeAndDrain() {
+        long tail;
+        do {
+            tail = mTail.get();
+        } while (!mTail.compareAndSet(tail, tail | CLOSED_FLAG));
+
+        while (mHead < tail) {
+            if (!drain()) {
+                Thread.yield();
+            }
+        }
+    }
+
+    private long reportDroppedCount(long reportedDropCount) {
+        long droppedCount = mDroppedCount.get();
+        if (droppedCount != reportedDropCount) {
+            mTarget.logWriter(MeLog.LEVEL_WARNING, TAG,
+                    "dropped " + (droppedCount - reportedDropCount) + " logs, buffer is full");
+        }
+        return droppedCount;
+    }
+
+    /**
+     * 输出缓存中所有已经写好的日志
+     * @return 是否输出了日志
+     */
+    private boolean drain() {
+        boolean hasWritten = false;
+        while (hasPendingRecord()) {
+            int index = (int) mHead & mMask;
+            int level = mLevels[index];
+            String tag = mTags[index];
+            String text = mTexts[index];
+            mTags[index] = null;
+            mTexts[index] = null;
+            mSequences.lazySet(index, mHead + mMask + 1);
+            mHead++;
+
+            mTarget.logWriter(level, tag, text);
+            hasWritten = true;
+        }
+        return hasWritten;
+    }
+
+    private boolean hasPendingRecord() {
+        return mSequences.get((int) mHead & mMask) == mHead + 1;
+    }
+}
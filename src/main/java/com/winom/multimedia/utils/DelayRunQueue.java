@@ -1,40 +1,111 @@
 package com.winom.multimedia.utils;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
 
+/**
+ * <p>其他线程发给Stage的命令队列，在Stage的线程中通过{@link #rerun()}执行</p>
+ * 多个线程可以同时{@link #addRunnable(Runnable)}，不加锁，不会因为执行线程正在执行命令而阻塞。
+ * rerun只执行调用时已经加入的命令，命令执行过程中新加入的命令会在下一次rerun时执行。
+ */
 public class DelayRunQueue {
-    private final List<Runnable> mDelayList = new ArrayList<>();
+    /**
+     * 后加入的在栈顶，rerun时整个取出再反转成加入的顺序
+     */
+    private final AtomicReference<Node> mTop = new AtomicReference<>();
+
+    /**
+     * 上一次rerun时某个命令抛出异常，排在它后面还没有执行的命令，只在执行线程中访问
+     */
+    private Node mPending;
+
+    /**
+     * 有新任务加入时的回调，用来唤醒执行{@link #rerun()}的线程
+     */
+    private final Runnable mOnRunnableAdded;
+
+    public DelayRunQueue() {
+        this(null);
+    }
+
+    public DelayRunQueue(Runnable onRunnableAdded) {
+        mOnRunnableAdded = onRunnableAdded;
+    }
 
     public void addRunnable(Runnable runnable) {
-        synchronized (mDelayList) {
-            mDelayList.add(runnable);
+        Node node = new Node(runnable);
+        Node top;
+        do {
+            top = mTop.get();
+            node.mNext = top;
+        } while (!mTop.compareAndSet(top, node));
+
+        if (mOnRunnableAdded != null) {
+            mOnRunnableAdded.run();
         }
     }
 
+    /**
+     * <p>按加入的顺序执行目前所有的命令，只能在一个线程中调用</p>
+     * 某个命令抛出异常时异常会直接抛出，后面的命令不会丢掉，下一次rerun时最先执行
+     */
     public void rerun() {
-        synchronized (mDelayList) {
-            if (mDelayList.size() == 0) {
-                return;
-            }
-
-            int oldSize = mDelayList.size();
-            for (int i = 0; i < mDelayList.size(); ++i) {
-                mDelayList.get(i).run();
-            }
+        Node node = mPending;
+        mPending = null;
+        if (mTop.get() != null) {
+            node = append(node, reverse(mTop.getAndSet(null)));
+        }
 
-            // 检查下同步执行过程中有没有新增，如果有的话就报错
-            if (oldSize != mDelayList.size()) {
-                throw new RuntimeException("can't add runnable to list when it call all runnable!");
-            } else {
-                mDelayList.clear();
+        while (node != null) {
+            Node next = node.mNext;
+            try {
+                node.mRunnable.run();
+            } catch (Throwable e) {
+                mPending = next;
+                throw e;
             }
+            node = next;
         }
     }
 
+    public boolean isEmpty() {
+        return mTop.get() == null && mPending == null;
+    }
+
     public void clear() {
-        synchronized (mDelayList) {
-            mDelayList.clear();
+        mTop.set(null);
+        mPending = null;
+    }
+
+    private static Node append(Node head, Node tail) {
+        if (head == null) {
+            return tail;
+        }
+
+        Node last = head;
+        while (last.mNext != null) {
+            last = last.mNext;
+        }
+        last.mNext = tail;
+        return head;
+    }
+
+    private static Node reverse(Node node) {
+        Node prev = null;
+        while (node != null) {
+            Node next = node.mNext;
+            node.mNext = prev;
+            prev = node;
+            node = next;
+        }
+        return prev;
+    }
+
+    private static class Node {
+        private final Runnable mRunnable;
+        private Node mNext;
+
+        private Node(Runnable runnable) {
+            mRunnable = runnable;
         }
     }
 }
@@ -4,6 +4,7 @@ import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
 import java.util.concurrent.FutureTask;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import androidx.annotation.NonNull;
 
@@ -42,9 +43,10 @@ public class FutureObject<T> implements Future<T> {
     }
 
     @Override
-    public T get(long timeout, @NonNull TimeUnit unit) throws InterruptedException, ExecutionException {
+    public T get(long timeout, @NonNull TimeUnit unit)
+            throws InterruptedException, ExecutionException, TimeoutException {
         createFutureTaskIfNeed();
-        return mFutureTask.get();
+        return mFutureTask.get(timeout, unit);
     }
 
     synchronized private void createFutureTaskIfNeed() {
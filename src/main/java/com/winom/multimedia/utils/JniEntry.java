@@ -8,4 +8,124 @@ public class JniEntry {
     }
 
     public static native void byteBufferCopy(ByteBuffer srcBuf, ByteBuffer dstBuf, int size);
+
+    /**
+     * 从srcBuf的srcOffset处拷贝size个字节到dstBuf的dstOffset处，两个都需要是direct buffer，不修改position
+     */
+    public static native void byteBufferCopyWithOffset(ByteBuffer srcBuf, int srcOffset, ByteBuffer dstBuf,
+                                                       int dstOffset, int size);
+
+    /**
+     * 创建x264编码器，输入为I420
+     * @param crf 大于0时使用CRF质量模式，否则使用bitRateKbps码率
+     * @param keyFrameInterval 关键帧间隔，单位为秒
+     * @param tune 可以为null
+     * @param threadCount 0表示自动
+     * @return 编码器句柄，失败返回0
+     */
+    public static native long x264Open(int width, int height, int frameRate, int bitRateKbps, int crf,
+                                       int keyFrameInterval, String preset, String tune, int threadCount,
+                                       boolean slicedThreads);
+
+    /**
+     * 把SPS、PPS（带起始码）依次写到outBuf中
+     * @param nalSizes 输出SPS和PPS的长度
+     * @return 总长度，失败返回负数
+     */
+    public static native int x264Headers(long handle, ByteBuffer outBuf, int[] nalSizes);
+
+    /**
+     * 编码一帧
+     * @param inBuf I420数据，为null时取出编码器中缓存的帧
+     * @param outInfo 输出pts、dts、是否为关键帧
+     * @return 输出的字节数，0表示这次没有输出，负数表示失败
+     */
+    public static native int x264Encode(long handle, ByteBuffer inBuf, int inOffset, long presentationTimeUs,
+                                        boolean forceKeyFrame, ByteBuffer outBuf, long[] outInfo);
+
+    public static native int x264DelayedFrames(long handle);
+
+    public static native void x264Close(long handle);
+
+    /**
+     * 创建lame编码器，输入为16位交错的PCM
+     * @param vbr 为true时使用VBR，按vbrQuality（0最好，9最差）编码，否则按bitRateKbps使用CBR
+     * @param quality 编码算法的质量，0最好最慢，9最差最快
+     * @return 编码器句柄，失败返回0
+     */
+    public static native long lameOpen(int sampleRate, int channelCount, int bitRateKbps, boolean vbr,
+                                       int vbrQuality, int quality);
+
+    /**
+     * 编码pcmBuf中从offset开始size字节的PCM，输出写到outBuf开头，两个都需要是direct buffer
+     * @return 输出的字节数，负数表示失败
+     */
+    public static native int lameEncode(long handle, ByteBuffer pcmBuf, int offset, int size, ByteBuffer outBuf);
+
+    /**
+     * 输出编码器中剩余的数据
+     * @return 输出的字节数，负数表示失败
+     */
+    public static native int lameFlush(long handle, ByteBuffer outBuf);
+
+    /**
+     * 获取需要覆盖到文件开头的Xing/LAME帧，需要在{@link #lameFlush}之后调用
+     * @return 帧的字节数，负数表示outBuf不够大
+     */
+    public static native int lameGetTagFrame(long handle, ByteBuffer outBuf);
+
+    public static native void lameClose(long handle);
+
+    /**
+     * 通过libavformat创建输出
+     * @param formatName libavformat中muxer的名字，比如mp4、hls
+     * @return 句柄，失败返回0
+     */
+    public static native long avMuxerOpen(String path, String formatName);
+
+    /**
+     * 添加一个轨道，需要在{@link #avMuxerStart}之前调用
+     * @param extraData H.264为带起始码的SPS、PPS，AAC为AudioSpecificConfig，需要是direct buffer
+     * @return 轨道的索引，负数表示失败
+     */
+    public static native int avMuxerAddTrack(long handle, String mimeType, int width, int height, int sampleRate,
+                                             int channelCount, ByteBuffer extraData, int extraDataSize);
+
+    /**
+     * 写入文件头
+     * @param options 传给muxer的选项，依次为key、value
+     * @return 负数表示失败
+     */
+    public static native int avMuxerStart(long handle, String[] options);
+
+    /**
+     * 写入一帧
+     * @return 负数表示失败
+     */
+    public static native int avMuxerWriteSample(long handle, int trackIndex, ByteBuffer buffer, int offset, int size,
+                                                long presentationTimeUs, boolean isKeyFrame);
+
+    /**
+     * 写出muxer缓存的数据，mp4的frag_custom模式下表示结束当前分片
+     * @return 负数表示失败
+     */
+    public static native int avMuxerFlush(long handle);
+
+    /**
+     * 取出一个muxer已经写完并关闭的文件，比如hls的分片
+     * @return 没有则返回null
+     */
+    public static native String avMuxerPollClosedFile(long handle);
+
+    /**
+     * 写入文件尾，之后还可以通过{@link #avMuxerPollClosedFile}取出最后写完的文件
+     * @return 负数表示失败
+     */
+    public static native int avMuxerWriteTrailer(long handle);
+
+    /**
+     * 释放，没有写过文件尾时会先写入
+     * @return 负数表示失败
+     */
+    public static native int avMuxerClose(long handle);
 }
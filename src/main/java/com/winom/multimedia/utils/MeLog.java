@@ -13,58 +13,102 @@ public class MeLog {
     public final static int LEVEL_WARNING = 3;
     public final static int LEVEL_ERROR = 4;
 
-    public static ILog sLogImpl = new EmptyLog();
+    public static volatile ILog sLogImpl = new EmptyLog();
+
+    /**
+     * 低于该级别的日志直接丢弃，不会格式化
+     */
+    private static volatile int sMinLevel = LEVEL_VERBOSE;
 
     public static void setLogImpl(ILog impl) {
         sLogImpl = impl;
     }
 
+    /**
+     * 设置输出日志的最低级别，比如线上版本可以设为{@link #LEVEL_INFO}，去掉每帧都会打的日志
+     */
+    public static void setMinLevel(int level) {
+        sMinLevel = level;
+    }
+
+    public static int getMinLevel() {
+        return sMinLevel;
+    }
+
+    /**
+     * <p>该级别的日志是否会被输出</p>
+     * 每帧都会调用的日志，需要先用这个判断一下，避免参数装箱以及可变参数数组的内存分配
+     */
+    public static boolean isLoggable(int level) {
+        return level >= sMinLevel && !(sLogImpl instanceof EmptyLog);
+    }
+
     public static void v(String tag, String text) {
-        sLogImpl.logWriter(LEVEL_VERBOSE, tag, text);
+        log(LEVEL_VERBOSE, tag, text);
     }
 
     public static void d(String tag, String text) {
-        sLogImpl.logWriter(LEVEL_DEBUG, tag, text);
+        log(LEVEL_DEBUG, tag, text);
     }
 
     public static void i(String tag, String text) {
-        sLogImpl.logWriter(LEVEL_INFO, tag, text);
+        log(LEVEL_INFO, tag, text);
     }
 
     public static void w(String tag, String text) {
-        sLogImpl.logWriter(LEVEL_WARNING, tag, text);
+        log(LEVEL_WARNING, tag, text);
     }
 
     public static void e(String tag, String text) {
-        sLogImpl.logWriter(LEVEL_ERROR, tag, text);
+        log(LEVEL_ERROR, tag, text);
     }
 
     public static void e(String tag, String text, Throwable ex) {
-        e(tag, text + "\n" + android.util.Log.getStackTraceString(ex));
+        if (isLoggable(LEVEL_ERROR)) {
+            e(tag, text + "\n" + android.util.Log.getStackTraceString(ex));
+        }
     }
 
     public static void printStack(String tag, Throwable ex) {
-        e(tag, android.util.Log.getStackTraceString(ex));
+        if (isLoggable(LEVEL_ERROR)) {
+            e(tag, android.util.Log.getStackTraceString(ex));
+        }
     }
 
     public static void v(String tag, String format, Object... args) {
-        v(tag, String.format(Locale.ENGLISH, format, args));
+        if (isLoggable(LEVEL_VERBOSE)) {
+            v(tag, String.format(Locale.ENGLISH, format, args));
+        }
     }
 
     public static void d(String tag, String format, Object... args) {
-        d(tag, String.format(format, args));
+        if (isLoggable(LEVEL_DEBUG)) {
+            d(tag, String.format(format, args));
+        }
     }
 
     public static void i(String tag, String format, Object... args) {
-        i(tag, String.format(format, args));
+        if (isLoggable(LEVEL_INFO)) {
+            i(tag, String.format(format, args));
+        }
     }
 
     public static void w(String tag, String format, Object... args) {
-        w(tag, String.format(format, args));
+        if (isLoggable(LEVEL_WARNING)) {
+            w(tag, String.format(format, args));
+        }
     }
 
     public static void e(String tag, String format, Object... args) {
-        e(tag, String.format(format, args));
+        if (isLoggable(LEVEL_ERROR)) {
+            e(tag, String.format(format, args));
+        }
+    }
+
+    private static void log(int level, String tag, String text) {
+        if (level >= sMinLevel) {
+            sLogImpl.logWriter(level, tag, text);
+        }
     }
 
     static class EmptyLog implements ILog {
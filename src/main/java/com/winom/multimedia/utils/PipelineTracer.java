@@ -0,0 +1,254 @@
+package com.winom.multimedia.utils;
+
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * <p>管道的跟踪工具，记录各个线程中的事件，可以导出为Chrome trace格式（chrome://tracing或者Perfetto打开）</p>
+ * 默认关闭，{@link #start(int)}之后才会记录。事件写入预先分配好的环形缓存，写满后覆盖最早的事件，
+ * 记录事件时不加锁也不分配内存，事件名和分类需要使用常量字符串。
+ * <pre>
+ * long startNs = PipelineTracer.now();
+ * ...
+ * PipelineTracer.complete(PipelineTracer.CATEGORY_CODEC, "queueInputBuffer", startNs, pts);
+ * </pre>
+ */
+public class PipelineTracer {
+    private static final String TAG = "PipelineTracer";
+
+    public static final String CATEGORY_STAGE = "stage";
+    public static final String CATEGORY_PROVIDER = "provider";
+    public static final String CATEGORY_CODEC = "codec";
+
+    /**
+     * 没有参数的时候传这个值，导出时不会输出args
+     */
+    public static final long NO_ARG = Long.MIN_VALUE;
+
+    private static volatile TraceBuffer sBuffer;
+
+    /**
+     * 记录线程名字，每个线程只在第一次记录事件的时候注册一次
+     */
+    private static final Map<Long, String> sThreadNames = new HashMap<>();
+    private static final ThreadLocal<Boolean> sThreadRegistered = new ThreadLocal<>();
+
+    /**
+     * 开始记录
+     * @param capacity 最多保留多少个事件，会向上取到2的幂
+     */
+    synchronized public static void start(int capacity) {
+        sBuffer = new TraceBuffer(capacity);
+        MeLog.i(TAG, "start tracing, capacity: %d", sBuffer.mCapacity);
+    }
+
+    /**
+     * 停止记录，已经记录的事件会被丢弃
+     */
+    synchronized public static void stop() {
+        sBuffer = null;
+        MeLog.i(TAG, "stop tracing");
+    }
+
+    public static boolean isEnabled() {
+        return sBuffer != null;
+    }
+
+    public static long now() {
+        return System.nanoTime();
+    }
+
+    /**
+     * 记录一个从startNs开始到现在结束的事件
+     * @param category 事件分类，常量字符串
+     * @param name 事件名，常量字符串
+     * @param startNs 开始的时间，{@link #now()}得到的
+     * @param arg 附带的参数，没有的话传{@link #NO_ARG}
+     */
+    public static void complete(String category, String name, long startNs, long arg) {
+        TraceBuffer buffer = sBuffer;
+        if (buffer == null) {
+            return;
+        }
+
+        registerThreadIfNeed();
+        buffer.write(category, name, startNs, System.nanoTime() - startNs, arg);
+    }
+
+    /**
+     * 记录一个瞬时事件
+     */
+    public static void instant(String category, String name, long arg) {
+        TraceBuffer buffer = sBuffer;
+        if (buffer == null) {
+            return;
+        }
+
+        registerThreadIfNeed();
+        buffer.write(category, name, System.nanoTime(), TraceBuffer.INSTANT_DURATION, arg);
+    }
+
+    /**
+     * 把目前记录的事件按照Chrome trace的json格式写到文件中
+     */
+    public static void dumpChromeTrace(String filePath) throws IOException {
+        Writer writer = new BufferedWriter(new FileWriter(filePath));
+        try {
+            dumpChromeTrace(writer);
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * 把目前记录的事件按照Chrome trace的json格式输出，记录过程中也可以调用
+     */
+    public static void dumpChromeTrace(Writer writer) throws IOException {
+        writer.write("{\"traceEvents\":[");
+        boolean isFirst = true;
+
+        Map<Long, String> threadNames;
+        synchronized (sThreadNames) {
+            threadNames = new HashMap<>(sThreadNames);
+        }
+        for (Map.Entry<Long, String> entry : threadNames.entrySet()) {
+            isFirst = writeSeparator(writer, isFirst);
+            writer.write(String.format("{\"name\":\"thread_name\",\"ph\":\"M\",\"pid\":1,\"tid\":%d,"
+                    + "\"args\":{\"name\":\"%s\"}}", entry.getKey(), escape(entry.getValue())));
+        }
+
+        TraceBuffer buffer = sBuffer;
+        if (buffer != null) {
+            buffer.dump(writer, isFirst);
+        }
+        writer.write("]}");
+        writer.flush();
+    }
+
+    private static void registerThreadIfNeed() {
+        if (sThreadRegistered.get() != null) {
+            return;
+        }
+
+        Thread thread = Thread.currentThread();
+        synchronized (sThreadNames) {
+            sThreadNames.put(thread.getId(), thread.getName());
+        }
+        sThreadRegistered.set(Boolean.TRUE);
+    }
+
+    private static boolean writeSeparator(Writer writer, boolean isFirst) throws IOException {
+        if (!isFirst) {
+            writer.write(",\n");
+        }
+        return false;
+    }
+
+    private static String escape(String text) {
+        return text.replace("\\", "\\\\").replace("\"", "\\\"");
+    }
+
+    /**
+     * 预先分配好的环形缓存，多个线程可以同时写入
+     */
+    private static class TraceBuffer {
+        private static final long INSTANT_DURATION = -1;
+
+        private final int mCapacity;
+        private final int mMask;
+        private final AtomicLong mNextSequence = new AtomicLong(0);
+
+        /**
+         * 每个槽位写入完成时的序号，写入过程中为-1，导出时用来判断数据是否完整
+         */
+        private final AtomicLongArray mCommitted;
+        private final String[] mCategories;
+        private final String[] mNames;
+        private final long[] mThreadIds;
+        private final long[] mStartNs;
+        private final long[] mDurationNs;
+        private final long[] mArgs;
+
+        private TraceBuffer(int capacity) {
+            int size = Integer.highestOneBit(Math.max(capacity, 2));
+            if (size < capacity) {
+                size <<= 1;
+            }
+
+            mCapacity = size;
+            mMask = size - 1;
+            mCommitted = new AtomicLongArray(size);
+            for (int i = 0; i < size; ++i) {
+                mCommitted.set(i, -1);
+            }
+            mCategories = new String[size];
+            mNames = new String[size];
+            mThreadIds = new long[size];
+            mStartNs = new long[size];
+            mDurationNs = new long[size];
+            mArgs = new long[size];
+        }
+
+        private void write(String category, String name, long startNs, long durationNs, long arg) {
+            long sequence = mNextSequence.getAndIncrement();
+            int index = (int) sequence & mMask;
+
+            mCommitted.set(index, -1);
+            mCategories[index] = category;
+            mNames[index] = name;
+            mThreadIds[index] = Thread.currentThread().getId();
+            mStartNs[index] = startNs;
+            mDurationNs[index] = durationNs;
+            mArgs[index] = arg;
+            mCommitted.lazySet(index, sequence);
+        }
+
+        private void dump(Writer writer, boolean isFirst) throws IOException {
+            long end = mNextSequence.get();
+            long begin = Math.max(0, end - mCapacity);
+            for (long sequence = begin; sequence < end; ++sequence) {
+                int index = (int) sequence & mMask;
+                if (mCommitted.get(index) != sequence) {
+                    continue;
+                }
+
+                String category = mCategories[index];
+                String name = mNames[index];
+                long threadId = mThreadIds[index];
+                long startNs = mStartNs[index];
+                long durationNs = mDurationNs[index];
+                long arg = mArgs[index];
+
+                // 读取过程中被覆盖了，丢弃
+                if (mCommitted.get(index) != sequence) {
+                    continue;
+                }
+
+                isFirst = writeSeparator(writer, isFirst);
+                StringBuilder builder = new StringBuilder(128);
+                builder.append("{\"name\":\"").append(escape(name))
+                        .append("\",\"cat\":\"").append(escape(category))
+                        .append("\",\"pid\":1,\"tid\":").append(threadId)
+                        .append(",\"ts\":").append(startNs / 1000).append('.')
+                        .append(String.format("%03d", startNs % 1000));
+                if (durationNs == INSTANT_DURATION) {
+                    builder.append(",\"ph\":\"i\",\"s\":\"t\"");
+                } else {
+                    builder.append(",\"ph\":\"X\",\"dur\":").append(durationNs / 1000).append('.')
+                            .append(String.format("%03d", durationNs % 1000));
+                }
+                if (arg != NO_ARG) {
+                    builder.append(",\"args\":{\"value\":").append(arg).append('}');
+                }
+                builder.append('}');
+                writer.write(builder.toString());
+            }
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package com.winom.multimedia.utils;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>有界的单生产者、单消费者无锁队列</p>
+ * {@link #offer(Object)}只能在同一个线程调用，{@link #poll()}只能在另一个（或同一个）线程调用，
+ * {@link #size()}和{@link #isEmpty()}可以在任意线程调用。
+ * @param <T> 队列中的元素类型
+ */
+public class SpscRingQueue<T> {
+    private final Object[] mElements;
+    private final int mMask;
+
+    /**
+     * 下一个要读取的位置，只有消费者会修改
+     */
+    private final AtomicLong mHead = new AtomicLong(0);
+
+    /**
+     * 下一个要写入的位置，只有生产者会修改
+     */
+    private final AtomicLong mTail = new AtomicLong(0);
+
+    /**
+     * 生产者缓存的读取位置，减少对{@link #mHead}的访问
+     */
+    private long mCachedHead = 0;
+
+    /**
+     * 消费者缓存的写入位置，减少对{@link #mTail}的访问
+     */
+    private long mCachedTail = 0;
+
+    /**
+     * @param capacity 队列的容量，会向上取到2的幂
+     */
+    public SpscRingQueue(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        }
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+        mElements = new Object[size];
+        mMask = size - 1;
+    }
+
+    /**
+     * 生产者往队列尾部添加一个元素
+     * @return 队列满了则返回false
+     */
+    public boolean offer(T element) {
+        if (element == null) {
+            throw new NullPointerException("can't offer null element");
+        }
+
+        long tail = mTail.get();
+        if (tail - mCachedHead >= mElements.length) {
+            mCachedHead = mHead.get();
+            if (tail - mCachedHead >= mElements.length) {
+                return false;
+            }
+        }
+
+        mElements[(int) tail & mMask] = element;
+        mTail.lazySet(tail + 1);
+        return true;
+    }
+
+    /**
+     * 消费者从队列头部取出一个元素
+     * @return 队列为空则返回null
+     */
+    @SuppressWarnings("unchecked")
+    public T poll() {
+        long head = mHead.get();
+        if (head >= mCachedTail) {
+            mCachedTail = mTail.get();
+            if (head >= mCachedTail) {
+                return null;
+            }
+        }
+
+        int index = (int) head & mMask;
+        T element = (T) mElements[index];
+        mElements[index] = null;
+        mHead.lazySet(head + 1);
+        return element;
+    }
+
+    public int size() {
+        long head = mHead.get();
+        long tail = mTail.get();
+        return (int) (tail - head);
+    }
+
+    public boolean isEmpty() {
+        return mHead.get() == mTail.get();
+    }
+
+    public int capacity() {
+        return mElements.length;
+    }
+}
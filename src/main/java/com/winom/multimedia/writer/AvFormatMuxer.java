@@ -0,0 +1,344 @@
+package com.winom.multimedia.writer;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.os.SystemClock;
+
+import com.winom.multimedia.exceptions.ProcessException;
+import com.winom.multimedia.exceptions.SetupException;
+import com.winom.multimedia.pipeline.Provider;
+import com.winom.multimedia.pipeline.Stage;
+import com.winom.multimedia.source.Frame;
+import com.winom.multimedia.utils.FutureObject;
+import com.winom.multimedia.utils.JniEntry;
+import com.winom.multimedia.utils.MeLog;
+import com.winom.multimedia.utils.MediaUtils;
+import com.winom.multimedia.utils.PipelineTracer;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>通过libavformat写文件的Stage</p>
+ * 和{@link Muxer}一样通过{@link #addTrackProvider}添加编码器的输出，所有轨道的格式都确定后才开始读取数据。
+ * 子类指定muxer的名字和选项，比如{@link FragmentedMp4Muxer}。
+ */
+public abstract class AvFormatMuxer extends Stage {
+    private static final String TAG = "AvFormatMuxer";
+
+    private final String mOutputPath;
+    private final List<TrackWriter> mTrackWriters;
+
+    private long mHandle = 0;
+    private boolean mIsMuxerStarted = false;
+    private long mFormatTimeoutMs = Muxer.DEFAULT_FORMAT_TIMEOUT_MS;
+    private long mSetupTime;
+
+    /**
+     * 是否有视频轨道，有的时候分片需要从视频的关键帧开始
+     */
+    protected boolean mHasVideoTrack = false;
+
+    public AvFormatMuxer(String outputPath) {
+        mOutputPath = outputPath;
+        mTrackWriters = new ArrayList<>();
+    }
+
+    /**
+     * 设置setup之后最多等待多久所有轨道的格式都确定，超时后processFrame抛出{@link ProcessException}，
+     * 需要在setup之前调用
+     */
+    public void setFormatTimeout(long timeoutMs) {
+        if (mState != State.INIT) {
+            throw new RuntimeException("only can set format timeout in init state");
+        }
+        mFormatTimeoutMs = timeoutMs;
+    }
+
+    public void addTrackProvider(FutureObject<MediaFormat> mediaFormat, Provider<Frame> provider) {
+        if (mState != State.INIT) {
+            throw new RuntimeException("only can add provider in init state");
+        }
+        mTrackWriters.add(new TrackWriter(mediaFormat, provider));
+    }
+
+    /**
+     * libavformat中muxer的名字，比如mp4、hls
+     */
+    protected abstract String getFormatName();
+
+    /**
+     * 写文件头时传给muxer的选项，依次为key、value
+     */
+    protected abstract String[] getMuxerOptions();
+
+    /**
+     * 写入一帧之前调用
+     * @param isVideoKeyFrame 是否为视频轨道的关键帧
+     */
+    protected void onBeforeWriteSample(long presentationTimeUs, boolean isVideoKeyFrame) throws ProcessException {
+    }
+
+    /**
+     * muxer写完并关闭了一个文件，在该Stage的线程中调用
+     */
+    protected void onFileClosed(String path) {
+    }
+
+    @Override
+    public void setup() throws SetupException {
+        try {
+            mHandle = JniEntry.avMuxerOpen(mOutputPath, getFormatName());
+        } catch (UnsatisfiedLinkError e) {
+            // 编译libmediaengine时缺少ffmpeg的某个静态库，没有编译av_muxer
+            throw new SetupException("libavformat muxer is not built into libmediaengine.", e);
+        }
+        if (mHandle == 0) {
+            throw new SetupException("open " + getFormatName() + " muxer failed: " + mOutputPath);
+        }
+
+        mSetupTime = SystemClock.elapsedRealtime();
+        setState(State.SETUPED);
+        MeLog.i(TAG, "%s muxer configured, waiting for track formats", getFormatName());
+    }
+
+    @Override
+    public void processFrame() throws ProcessException {
+        // 编码器在输出第一帧之前就会确定格式，所以启动之前不读取数据也不会等太久
+        if (!mIsMuxerStarted) {
+            startMuxerIfReady();
+            if (!mIsMuxerStarted) {
+                return;
+            }
+        }
+
+        boolean isAllWriterEnd = true;
+        for (int i = 0; i < mTrackWriters.size(); ++i) {
+            TrackWriter writer = mTrackWriters.get(i);
+            if (!writer.isWriteEnd()) {
+                isAllWriterEnd = false;
+                writer.processFrame();
+            }
+        }
+        pollClosedFiles();
+
+        if (isAllWriterEnd) {
+            finishMuxer();
+            setState(State.DONE);
+        }
+    }
+
+    /**
+     * 启动之前需要轮询各个轨道的格式是否已经确定
+     */
+    @Override
+    protected boolean isPollingRequired() {
+        return !mIsMuxerStarted;
+    }
+
+    @Override
+    public void release() {
+        MeLog.i(TAG, "release %s muxer", getFormatName());
+        if (mHandle != 0) {
+            JniEntry.avMuxerClose(mHandle);
+            mHandle = 0;
+        }
+    }
+
+    /**
+     * 让muxer写出缓存的数据
+     */
+    protected void flushMuxer() throws ProcessException {
+        int ret = JniEntry.avMuxerFlush(mHandle);
+        if (ret < 0) {
+            throw new ProcessException("flush " + getFormatName() + " muxer failed: " + ret);
+        }
+    }
+
+    /**
+     * <p>所有轨道的格式都确定后启动muxer</p>
+     * 启动之前不读取数据，上游没有输出格式就结束时也看不到结束标记，
+     * 所以和{@link Muxer}一样超过{@link #mFormatTimeoutMs}还没有确定格式时抛出异常，不会一直轮询下去。
+     */
+    private void startMuxerIfReady() throws ProcessException {
+        for (int i = 0; i < mTrackWriters.size(); ++i) {
+            if (!mTrackWriters.get(i).isOutputMediaFormatReady()) {
+                long waitTime = SystemClock.elapsedRealtime() - mSetupTime;
+                if (waitTime > mFormatTimeoutMs) {
+                    throw new ProcessException("track " + i + " format isn't ready after " + waitTime + "ms");
+                }
+                return;
+            }
+        }
+
+        try {
+            for (int i = 0; i < mTrackWriters.size(); ++i) {
+                TrackWriter writer = mTrackWriters.get(i);
+                MediaFormat mediaFormat = writer.getOutputMediaFormat();
+                int trackIndex = addTrack(mediaFormat);
+                MeLog.i(TAG, "track[%d]: %s", trackIndex, mediaFormat);
+                writer.setTrackIndex(trackIndex, isVideoFormat(mediaFormat));
+                mHasVideoTrack |= isVideoFormat(mediaFormat);
+            }
+        } catch (ExecutionException | InterruptedException e) {
+            throw new ProcessException("add track failed.", e);
+        }
+
+        int ret = JniEntry.avMuxerStart(mHandle, getMuxerOptions());
+        if (ret < 0) {
+            throw new ProcessException("start " + getFormatName() + " muxer failed: " + ret);
+        }
+        mIsMuxerStarted = true;
+        MeLog.i(TAG, "%s muxer started", getFormatName());
+    }
+
+    private int addTrack(MediaFormat mediaFormat) throws ProcessException {
+        String mimeType = mediaFormat.getString(MediaFormat.KEY_MIME);
+        boolean isVideo = isVideoFormat(mediaFormat);
+        ByteBuffer extraData = buildExtraData(mediaFormat);
+        int trackIndex = JniEntry.avMuxerAddTrack(mHandle, mimeType,
+                isVideo ? mediaFormat.getInteger(MediaFormat.KEY_WIDTH) : 0,
+                isVideo ? mediaFormat.getInteger(MediaFormat.KEY_HEIGHT) : 0,
+                isVideo ? 0 : mediaFormat.getInteger(MediaFormat.KEY_SAMPLE_RATE),
+                isVideo ? 0 : mediaFormat.getInteger(MediaFormat.KEY_CHANNEL_COUNT),
+                extraData, extraData.limit());
+        if (trackIndex < 0) {
+            throw new ProcessException("add track failed: " + mimeType + ", " + trackIndex);
+        }
+        return trackIndex;
+    }
+
+    /**
+     * 按顺序拼接csd-0、csd-1，H.264为SPS、PPS，AAC只有csd-0
+     */
+    private static ByteBuffer buildExtraData(MediaFormat mediaFormat) {
+        String[] keys = {"csd-0", "csd-1"};
+        int size = 0;
+        for (String key : keys) {
+            if (mediaFormat.containsKey(key)) {
+                size += mediaFormat.getByteBuffer(key).remaining();
+            }
+        }
+
+        ByteBuffer extraData = ByteBuffer.allocateDirect(size);
+        for (String key : keys) {
+            if (mediaFormat.containsKey(key)) {
+                extraData.put(mediaFormat.getByteBuffer(key).duplicate());
+            }
+        }
+        extraData.flip();
+        return extraData;
+    }
+
+    private static boolean isVideoFormat(MediaFormat mediaFormat) {
+        return mediaFormat.getString(MediaFormat.KEY_MIME).startsWith("video/");
+    }
+
+    private void pollClosedFiles() {
+        String path;
+        while ((path = JniEntry.avMuxerPollClosedFile(mHandle)) != null) {
+            MeLog.i(TAG, "file closed: %s", path);
+            onFileClosed(path);
+        }
+    }
+
+    private void finishMuxer() throws ProcessException {
+        int ret = JniEntry.avMuxerWriteTrailer(mHandle);
+        pollClosedFiles();
+        JniEntry.avMuxerClose(mHandle);
+        mHandle = 0;
+        if (ret < 0) {
+            throw new ProcessException("finish " + getFormatName() + " muxer failed: " + ret);
+        }
+        MeLog.i(TAG, "%s muxer finished", getFormatName());
+    }
+
+    private class TrackWriter {
+        private final FutureObject<MediaFormat> mFutureMediaFormat;
+        private final Provider<Frame> mFrameProvider;
+
+        private int mTrackIndex;
+        private boolean mIsVideo;
+        private boolean mIsWriteEnd;
+        private long mLastFramePts;
+
+        private TrackWriter(FutureObject<MediaFormat> futureMediaFormat, Provider<Frame> provider) {
+            mFutureMediaFormat = futureMediaFormat;
+            mFrameProvider = provider;
+            mIsWriteEnd = false;
+            mLastFramePts = 0;
+        }
+
+        private boolean isWriteEnd() {
+            return mIsWriteEnd;
+        }
+
+        private void setTrackIndex(int index, boolean isVideo) {
+            mTrackIndex = index;
+            mIsVideo = isVideo;
+        }
+
+        private boolean isOutputMediaFormatReady() {
+            return mFutureMediaFormat.isDone();
+        }
+
+        private MediaFormat getOutputMediaFormat() throws ExecutionException, InterruptedException {
+            return mFutureMediaFormat.get();
+        }
+
+        private void processFrame() throws ProcessException {
+            Frame frame = mFrameProvider.dequeueOutputBuffer();
+            if (frame == null) {
+                return;
+            }
+            mMetrics.recordFrameIn();
+
+            try {
+                if (MediaUtils.hasEosFlag(frame.flags)) {
+                    MeLog.i(TAG, "meet BUFFER_FLAG_END_OF_STREAM");
+                    mIsWriteEnd = true;
+                    return;
+                }
+
+                if ((frame.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+                    MeLog.i(TAG, "ignoring BUFFER_FLAG_CODEC_CONFIG");
+                    return;
+                }
+
+                if (frame.presentationTimeUs < mLastFramePts) {
+                    MeLog.w(TAG, "out of order frame. %d <= %d", frame.presentationTimeUs, mLastFramePts);
+                    return;
+                } else if (frame.presentationTimeUs == mLastFramePts) {
+                    frame.presentationTimeUs += TimeUnit.MILLISECONDS.toMicros(1);
+                }
+                mLastFramePts = frame.presentationTimeUs;
+
+                // 音频的每一帧都可以独立解码
+                boolean isKeyFrame = !mIsVideo || (frame.flags & MediaCodec.BUFFER_FLAG_SYNC_FRAME) != 0;
+                onBeforeWriteSample(frame.presentationTimeUs, mIsVideo && isKeyFrame);
+                writeSampleData(frame, isKeyFrame);
+            } finally {
+                mFrameProvider.enqueueOutputBuffer(frame);
+            }
+        }
+
+        private void writeSampleData(Frame frame, boolean isKeyFrame) throws ProcessException {
+            long traceStartNs = PipelineTracer.now();
+            int ret = JniEntry.avMuxerWriteSample(mHandle, mTrackIndex, frame.buffer, frame.offset, frame.size,
+                    frame.presentationTimeUs, isKeyFrame);
+            PipelineTracer.complete(PipelineTracer.CATEGORY_CODEC, "writeSampleData", traceStartNs,
+                    frame.presentationTimeUs);
+            if (ret < 0) {
+                throw new ProcessException("write sample failed: " + ret);
+            }
+
+            if (MeLog.isLoggable(MeLog.LEVEL_VERBOSE)) {
+                MeLog.v(TAG, "[%d] size: %d, time: %d, flag: %d",
+                        mTrackIndex, frame.size, frame.presentationTimeUs, frame.flags);
+            }
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package com.winom.multimedia.writer;
+
+import com.winom.multimedia.exceptions.ProcessException;
+import com.winom.multimedia.utils.MeLog;
+import com.winom.multimedia.utils.PipelineTracer;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>通过libavformat写fragmented mp4文件</p>
+ * {@link Muxer}使用的MediaMuxer在结束时才写moov，录制过程中所有样本的索引都在内存中，文件在结束前无法播放，崩溃后整个文件都不可用。
+ * 这里开头只写一个空的moov，之后每隔一段时间把这段时间的数据写成一个moof+mdat分片，内存中最多只有一个分片的数据，
+ * 文件可以边录边上传、播放，崩溃时也只丢失最后一个分片。
+ */
+public class FragmentedMp4Muxer extends AvFormatMuxer {
+    private static final String TAG = "FragmentedMp4Muxer";
+
+    private static final long DEFAULT_FRAGMENT_DURATION_MS = 2000;
+
+    /**
+     * 一直等不到关键帧时，分片最长为设置时长的倍数，避免内存无限增长
+     */
+    private static final int MAX_FRAGMENT_DURATION_FACTOR = 2;
+
+    private long mFragmentDurationUs = TimeUnit.MILLISECONDS.toMicros(DEFAULT_FRAGMENT_DURATION_MS);
+    private long mFragmentStartUs = -1;
+
+    public FragmentedMp4Muxer(String filePath) {
+        super(filePath);
+    }
+
+    /**
+     * <p>设置每个分片的时长，默认为{@link #DEFAULT_FRAGMENT_DURATION_MS}</p>
+     * 有视频轨道时分片从视频的关键帧开始，实际时长会按照关键帧间隔对齐
+     */
+    public void setFragmentDuration(long durationMs) {
+        if (mState != State.INIT) {
+            throw new RuntimeException("only can set fragment duration in init state");
+        }
+        if (durationMs <= 0) {
+            throw new IllegalArgumentException("fragment duration must be positive: " + durationMs);
+        }
+        mFragmentDurationUs = TimeUnit.MILLISECONDS.toMicros(durationMs);
+    }
+
+    @Override
+    protected String getFormatName() {
+        return "mp4";
+    }
+
+    /**
+     * 开头写空的moov，分片由{@link #onBeforeWriteSample}决定何时结束
+     */
+    @Override
+    protected String[] getMuxerOptions() {
+        return new String[] {"movflags", "empty_moov+default_base_moof+frag_custom"};
+    }
+
+    /**
+     * 在写入一帧之前判断是否需要结束当前的分片，有视频轨道时新的分片从视频的关键帧开始
+     */
+    @Override
+    protected void onBeforeWriteSample(long presentationTimeUs, boolean isVideoKeyFrame) throws ProcessException {
+        if (mFragmentStartUs < 0) {
+            mFragmentStartUs = presentationTimeUs;
+            return;
+        }
+
+        long duration = presentationTimeUs - mFragmentStartUs;
+        boolean canCut = !mHasVideoTrack || isVideoKeyFrame;
+        if ((canCut && duration >= mFragmentDurationUs)
+                || duration >= mFragmentDurationUs * MAX_FRAGMENT_DURATION_FACTOR) {
+            long traceStartNs = PipelineTracer.now();
+            flushMuxer();
+            PipelineTracer.complete(PipelineTracer.CATEGORY_CODEC, "flushFragment", traceStartNs, presentationTimeUs);
+            MeLog.d(TAG, "flush fragment [%d, %d)", mFragmentStartUs, presentationTimeUs);
+            mFragmentStartUs = presentationTimeUs;
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package com.winom.multimedia.writer;
+
+import com.winom.multimedia.utils.MeLog;
+
+import java.io.File;
+import java.util.Locale;
+
+/**
+ * <p>通过libavformat的hls muxer把编码后的数据切成HLS分片</p>
+ * 分片为MPEG-TS或者fMP4，达到设置的时长后从下一个视频关键帧开始新的分片，播放列表只保留最近的若干个分片，
+ * 每写完一个分片都会通过{@link SegmentListener}通知，可以边录边上传。
+ */
+public class HlsWriter extends AvFormatMuxer {
+    private static final String TAG = "HlsWriter";
+
+    public static final String SEGMENT_TYPE_MPEGTS = "mpegts";
+    public static final String SEGMENT_TYPE_FMP4 = "fmp4";
+
+    private static final long DEFAULT_SEGMENT_DURATION_MS = 6000;
+    private static final int DEFAULT_PLAYLIST_SIZE = 5;
+
+    /**
+     * 分片、播放列表写完时的回调，在该Stage的线程中调用，不要做耗时操作
+     */
+    public interface SegmentListener {
+        /**
+         * 一个分片写完，fMP4分片的初始化文件写完时也会回调
+         * @param segmentPath 分片文件的路径
+         */
+        void onSegmentFinished(String segmentPath);
+
+        /**
+         * 播放列表更新，此时列表中的分片都已经写完
+         * @param playlistPath 播放列表的路径
+         */
+        void onPlaylistUpdated(String playlistPath);
+    }
+
+    private final String mPlaylistPath;
+
+    private long mSegmentDurationMs = DEFAULT_SEGMENT_DURATION_MS;
+    private int mPlaylistSize = DEFAULT_PLAYLIST_SIZE;
+    private String mSegmentType = SEGMENT_TYPE_MPEGTS;
+    private String mSegmentFilePattern;
+    private SegmentListener mSegmentListener;
+
+    /**
+     * @param playlistPath m3u8播放列表的路径，分片默认写在同一个目录下
+     */
+    public HlsWriter(String playlistPath) {
+        super(playlistPath);
+        mPlaylistPath = playlistPath;
+    }
+
+    /**
+     * <p>设置分片的目标时长，默认为{@link #DEFAULT_SEGMENT_DURATION_MS}</p>
+     * 有视频轨道时分片从视频的关键帧开始，实际时长会按照关键帧间隔对齐
+     */
+    public void setSegmentDuration(long durationMs) {
+        if (mState != State.INIT) {
+            throw new RuntimeException("only can set segment duration in init state");
+        }
+        if (durationMs <= 0) {
+            throw new IllegalArgumentException("segment duration must be positive: " + durationMs);
+        }
+        mSegmentDurationMs = durationMs;
+    }
+
+    /**
+     * 设置播放列表中最多保留的分片个数，默认为{@link #DEFAULT_PLAYLIST_SIZE}，0表示保留所有分片
+     */
+    public void setPlaylistSize(int size) {
+        if (mState != State.INIT) {
+            throw new RuntimeException("only can set playlist size in init state");
+        }
+        if (size < 0) {
+            throw new IllegalArgumentException("playlist size must not be negative: " + size);
+        }
+        mPlaylistSize = size;
+    }
+
+    /**
+     * @param segmentType {@link #SEGMENT_TYPE_MPEGTS}或者{@link #SEGMENT_TYPE_FMP4}，默认为MPEG-TS
+     */
+    public void setSegmentType(String segmentType) {
+        if (mState != State.INIT) {
+            throw new RuntimeException("only can set segment type in init state");
+        }
+        if (!SEGMENT_TYPE_MPEGTS.equals(segmentType) && !SEGMENT_TYPE_FMP4.equals(segmentType)) {
+            throw new IllegalArgumentException("unsupported segment type: " + segmentType);
+        }
+        mSegmentType = segmentType;
+    }
+
+    /**
+     * 设置分片文件的路径格式，需要包含一个%d之类的序号，比如/sdcard/live/seg_%05d.ts，
+     * 默认为播放列表的文件名加上序号
+     */
+    public void setSegmentFilePattern(String pattern) {
+        if (mState != State.INIT) {
+            throw new RuntimeException("only can set segment file pattern in init state");
+        }
+        mSegmentFilePattern = pattern;
+    }
+
+    public void setSegmentListener(SegmentListener listener) {
+        if (mState != State.INIT) {
+            throw new RuntimeException("only can set segment listener in init state");
+        }
+        mSegmentListener = listener;
+    }
+
+    @Override
+    protected String getFormatName() {
+        return "hls";
+    }
+
+    /**
+     * 写完的分片和播放列表先写到.tmp文件再改名，读到的文件总是完整的
+     */
+    @Override
+    protected String[] getMuxerOptions() {
+        String baseName = getPlaylistBaseName();
+        String segmentPattern = mSegmentFilePattern;
+        if (segmentPattern == null) {
+            String extension = SEGMENT_TYPE_FMP4.equals(mSegmentType) ? ".m4s" : ".ts";
+            segmentPattern = baseName + "_%05d" + extension;
+        }
+
+        MeLog.i(TAG, "hls segment: %s, duration: %d ms, playlist size: %d", segmentPattern, mSegmentDurationMs,
+                mPlaylistSize);
+        return new String[] {
+                "hls_time", String.format(Locale.US, "%.3f", mSegmentDurationMs / 1000.0),
+                "hls_list_size", String.valueOf(mPlaylistSize),
+                "hls_segment_type", mSegmentType,
+                "hls_segment_filename", segmentPattern,
+                "hls_fmp4_init_filename", new File(baseName + "_init.mp4").getName(),
+                "hls_flags", "independent_segments+temp_file",
+        };
+    }
+
+    @Override
+    protected void onFileClosed(String path) {
+        if (mSegmentListener == null) {
+            return;
+        }
+
+        if (path.equals(mPlaylistPath)) {
+            mSegmentListener.onPlaylistUpdated(path);
+        } else if (!path.endsWith(".m3u8")) {
+            mSegmentListener.onSegmentFinished(path);
+        }
+    }
+
+    /**
+     * 去掉播放列表的扩展名
+     */
+    private String getPlaylistBaseName() {
+        int dot = mPlaylistPath.lastIndexOf('.');
+        int separator = mPlaylistPath.lastIndexOf(File.separatorChar);
+        return dot > separator ? mPlaylistPath.substring(0, dot) : mPlaylistPath;
+    }
+}
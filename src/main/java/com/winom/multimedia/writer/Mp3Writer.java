@@ -0,0 +1,225 @@
+package com.winom.multimedia.writer;
+
+import com.winom.multimedia.exceptions.ProcessException;
+import com.winom.multimedia.exceptions.ReleaseException;
+import com.winom.multimedia.exceptions.SetupException;
+import com.winom.multimedia.pipeline.Provider;
+import com.winom.multimedia.pipeline.Stage;
+import com.winom.multimedia.source.Frame;
+import com.winom.multimedia.utils.JniEntry;
+import com.winom.multimedia.utils.MeLog;
+import com.winom.multimedia.utils.MediaConstants;
+import com.winom.multimedia.utils.MediaUtils;
+import com.winom.multimedia.utils.PipelineTracer;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * <p>通过libmp3lame把PCM编码为MP3并写到文件中</p>
+ * 输入为16位交错的PCM，需要在direct buffer中（比如{@link com.winom.multimedia.recorder.AudioRecorder}的输出），
+ * 编码和写文件都直接使用堆外内存，不经过Java堆，也不占用MediaCodec的实例。
+ */
+public class Mp3Writer extends Stage {
+    private static final String TAG = "Mp3Writer";
+
+    private static final int DEFAULT_BIT_RATE_KBPS = 128;
+    private static final int DEFAULT_VBR_QUALITY = 4;
+    private static final int DEFAULT_QUALITY = 5;
+
+    /**
+     * lame建议的输出buffer大小为1.25倍的采样数再加7200字节，flush时也至少需要7200字节
+     */
+    private static final int MIN_OUTPUT_BUFFER_SIZE = 7200;
+
+    private final String mFilePath;
+    private final int mSampleRate;
+    private final int mChannelCount;
+    private final Provider<Frame> mAudioProvider;
+
+    private int mBitRateKbps = DEFAULT_BIT_RATE_KBPS;
+    private boolean mUseVbr = false;
+    private int mVbrQuality = DEFAULT_VBR_QUALITY;
+    private int mQuality = DEFAULT_QUALITY;
+
+    private long mHandle = 0;
+    private RandomAccessFile mFile;
+    private FileChannel mFileChannel;
+    private ByteBuffer mOutputBuffer;
+    private long mWroteCount = 0;
+
+    public Mp3Writer(String filepath, int sampleRate, int channelCnt, Provider<Frame> provider) {
+        mFilePath = filepath;
+        mSampleRate = sampleRate;
+        mChannelCount = channelCnt;
+        mAudioProvider = provider;
+    }
+
+    /**
+     * 设置CBR模式下的码率，单位为kbps，默认为{@link #DEFAULT_BIT_RATE_KBPS}
+     */
+    public void setBitRate(int bitRateKbps) {
+        if (mState != State.INIT) {
+            throw new RuntimeException("only can set bit rate in init state");
+        }
+        mBitRateKbps = bitRateKbps;
+    }
+
+    /**
+     * 使用VBR模式，按质量编码，不再使用{@link #setBitRate}设置的码率
+     * @param vbrQuality 0最好，9最差
+     */
+    public void setVbr(boolean useVbr, int vbrQuality) {
+        if (mState != State.INIT) {
+            throw new RuntimeException("only can set vbr in init state");
+        }
+        mUseVbr = useVbr;
+        mVbrQuality = vbrQuality;
+    }
+
+    /**
+     * 设置编码算法的质量，0最好最慢，9最差最快，默认为{@link #DEFAULT_QUALITY}
+     */
+    public void setQuality(int quality) {
+        if (mState != State.INIT) {
+            throw new RuntimeException("only can set quality in init state");
+        }
+        mQuality = quality;
+    }
+
+    @Override
+    public void setup() throws SetupException {
+        MeLog.i(TAG, "setup mp3 writer, %d Hz, %d channels, vbr: %b, bit rate: %d, vbr quality: %d, quality: %d",
+                mSampleRate, mChannelCount, mUseVbr, mBitRateKbps, mVbrQuality, mQuality);
+        try {
+            mHandle = JniEntry.lameOpen(mSampleRate, mChannelCount, mBitRateKbps, mUseVbr, mVbrQuality, mQuality);
+        } catch (UnsatisfiedLinkError e) {
+            // 编译libmediaengine时没有lame.h，没有编译lame的接口
+            throw new SetupException("lame is not built into libmediaengine.", e);
+        }
+        if (mHandle == 0) {
+            throw new SetupException("open lame encoder failed.");
+        }
+
+        try {
+            mFile = new RandomAccessFile(mFilePath, "rw");
+            mFile.setLength(0);
+            mFileChannel = mFile.getChannel();
+        } catch (IOException e) {
+            // setup失败时不会再调用release，这里需要自己关闭
+            MediaUtils.closeQuietly(mFile);
+            mFile = null;
+            mFileChannel = null;
+            JniEntry.lameClose(mHandle);
+            mHandle = 0;
+            throw new SetupException("Open output file failed.", e);
+        }
+
+        // 按20ms一帧的数据先分配，遇到更大的帧再扩容
+        int samplesPerFrame = (int) (mSampleRate * MediaConstants.DURATION_PRE_AUDIO_FRAME
+                / MediaConstants.MS_PER_SECOND);
+        mOutputBuffer = ByteBuffer.allocateDirect(getOutputBufferSize(samplesPerFrame));
+
+        setState(State.SETUPED);
+    }
+
+    @Override
+    public void processFrame() throws ProcessException {
+        Frame frame = mAudioProvider.dequeueOutputBuffer();
+        if (frame == null) {
+            return;
+        }
+        mMetrics.recordFrameIn();
+
+        try {
+            if (MediaUtils.hasEosFlag(frame.flags)) {
+                finishEncode();
+                setState(State.DONE);
+                return;
+            }
+            encodeFrame(frame);
+        } catch (IOException e) {
+            throw new ProcessException("Write data to failed.", e);
+        } finally {
+            mAudioProvider.enqueueOutputBuffer(frame);
+        }
+    }
+
+    @Override
+    public void release() throws ReleaseException {
+        MeLog.i(TAG, "release mp3 writer, wrote %d bytes", mWroteCount);
+        if (mHandle != 0) {
+            JniEntry.lameClose(mHandle);
+            mHandle = 0;
+        }
+
+        if (mFile != null) {
+            try {
+                mFile.close();
+            } catch (IOException e) {
+                throw new ReleaseException("Close file failed.", e);
+            } finally {
+                mFile = null;
+                mFileChannel = null;
+            }
+        }
+    }
+
+    private void encodeFrame(Frame frame) throws ProcessException, IOException {
+        if (!frame.buffer.isDirect()) {
+            throw new ProcessException("mp3 writer input must be a direct buffer");
+        }
+
+        int samplesPerChannel = frame.size / MediaConstants.BYTE_COUNT_PRE_SAMPLE / mChannelCount;
+        int outputSize = getOutputBufferSize(samplesPerChannel);
+        if (mOutputBuffer.capacity() < outputSize) {
+            MeLog.i(TAG, "grow output buffer to %d", outputSize);
+            mOutputBuffer = ByteBuffer.allocateDirect(outputSize);
+        }
+
+        long traceStartNs = PipelineTracer.now();
+        int size = JniEntry.lameEncode(mHandle, frame.buffer, frame.offset, frame.size, mOutputBuffer);
+        PipelineTracer.complete(PipelineTracer.CATEGORY_CODEC, "lameEncode", traceStartNs,
+                frame.presentationTimeUs);
+        if (size < 0) {
+            throw new ProcessException("lame encode failed: " + size);
+        }
+        writeOutput(size);
+    }
+
+    /**
+     * 写出编码器中剩余的数据，再用最终的Xing/LAME帧覆盖文件开头的占位帧
+     */
+    private void finishEncode() throws ProcessException, IOException {
+        int size = JniEntry.lameFlush(mHandle, mOutputBuffer);
+        if (size < 0) {
+            throw new ProcessException("lame flush failed: " + size);
+        }
+        writeOutput(size);
+
+        int tagSize = JniEntry.lameGetTagFrame(mHandle, mOutputBuffer);
+        if (tagSize > 0) {
+            mOutputBuffer.position(0);
+            mOutputBuffer.limit(tagSize);
+            while (mOutputBuffer.hasRemaining()) {
+                mFileChannel.write(mOutputBuffer, mOutputBuffer.position());
+            }
+        }
+        MeLog.i(TAG, "mp3 encode finished, %d bytes, tag frame: %d", mWroteCount, tagSize);
+    }
+
+    private void writeOutput(int size) throws IOException {
+        mOutputBuffer.position(0);
+        mOutputBuffer.limit(size);
+        while (mOutputBuffer.hasRemaining()) {
+            mFileChannel.write(mOutputBuffer);
+        }
+        mWroteCount += size;
+    }
+
+    private static int getOutputBufferSize(int samplesPerChannel) {
+        return samplesPerChannel * 5 / 4 + MIN_OUTPUT_BUFFER_SIZE;
+    }
+}
@@ -3,16 +3,26 @@ package com.winom.multimedia.writer;
 import android.media.MediaCodec;
 import android.media.MediaFormat;
 import android.media.MediaMuxer;
+import android.os.Build;
+import android.os.SystemClock;
+import android.system.ErrnoException;
+import android.system.Os;
 
+import com.winom.multimedia.exceptions.ProcessException;
 import com.winom.multimedia.exceptions.SetupException;
 import com.winom.multimedia.pipeline.Provider;
 import com.winom.multimedia.pipeline.Stage;
 import com.winom.multimedia.source.Frame;
 import com.winom.multimedia.utils.FutureObject;
+import com.winom.multimedia.utils.MediaConstants;
 import com.winom.multimedia.utils.MeLog;
 import com.winom.multimedia.utils.MediaUtils;
+import com.winom.multimedia.utils.PipelineTracer;
 
+import java.io.FileDescriptor;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.ExecutionException;
@@ -21,14 +31,100 @@ import java.util.concurrent.TimeUnit;
 public class Muxer extends Stage {
     private static final String TAG = "Muxer";
 
+    /**
+     * 启动之前每个轨道默认最多暂存的字节数和帧数
+     */
+    private static final int DEFAULT_STAGING_BYTES = 1024 * 1024;
+    private static final int MAX_STAGING_SAMPLES = 512;
+
+    /**
+     * 默认最多等待多久所有轨道的格式都确定，超过后认为上游出错了，{@link AvFormatMuxer}也使用这个值
+     */
+    static final long DEFAULT_FORMAT_TIMEOUT_MS = 10_000;
+
+    /**
+     * mp4的box头：4字节长度、4字节类型，长度为1时后面再跟8字节的长度
+     */
+    private static final int BOX_HEADER_SIZE = 8;
+    private static final int LARGE_BOX_HEADER_SIZE = 16;
+
     private final String mOutputPath;
+    private final FileDescriptor mOutputFd;
     private final List<TrackWriter> mTrackWriters;
 
+    private final int mStagingBytesPerTrack;
+
     private MediaMuxer mMediaMuxer;
+    private boolean mIsMuxerStarted = false;
+
+    /**
+     * 所有轨道都没有确定格式就结束了，不启动MediaMuxer
+     */
+    private boolean mIsNothingToMux = false;
+    private long mFormatTimeoutMs = DEFAULT_FORMAT_TIMEOUT_MS;
+    private long mSetupTime;
+
+    /**
+     * 预分配空间：setup时按预估的大小给文件分配好空间，release时再截断到实际的大小
+     */
+    private long mPreallocateBytes = 0;
+    private RandomAccessFile mOutputFile;
+    private FileDescriptor mPreallocatedFd;
 
     public Muxer(String filePath) {
+        this(filePath, DEFAULT_STAGING_BYTES);
+    }
+
+    /**
+     * @param stagingBytesPerTrack MediaMuxer启动之前每个轨道最多暂存多少字节，暂存满了之后该轨道会等待启动
+     */
+    public Muxer(String filePath, int stagingBytesPerTrack) {
+        this(filePath, null, stagingBytesPerTrack);
+    }
+
+    /**
+     * 写到调用方打开的文件中，需要Android 8.0，fd需要可读写、可以seek，release之后由调用方关闭
+     */
+    public Muxer(FileDescriptor fd) {
+        this(fd, DEFAULT_STAGING_BYTES);
+    }
+
+    public Muxer(FileDescriptor fd, int stagingBytesPerTrack) {
+        this(null, fd, stagingBytesPerTrack);
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.O) {
+            throw new RuntimeException("muxer with file descriptor requires api 26");
+        }
+    }
+
+    private Muxer(String filePath, FileDescriptor fd, int stagingBytesPerTrack) {
         mOutputPath = filePath;
+        mOutputFd = fd;
         mTrackWriters = new ArrayList<>();
+        mStagingBytesPerTrack = stagingBytesPerTrack;
+    }
+
+    /**
+     * <p>按照预估的码率和时长提前给文件分配好空间，release时截断到实际的大小</p>
+     * 避免长时间录制时文件一点点增长导致碎片化以及写入时偶尔的卡顿。
+     * 需要Android 8.0，低版本忽略，需要在setup之前调用
+     * @param estimatedBitRate 所有轨道加起来的码率，单位为bps
+     */
+    public void setPreallocation(long estimatedBitRate, long durationMs) {
+        if (mState != State.INIT) {
+            throw new RuntimeException("only can set preallocation in init state");
+        }
+        mPreallocateBytes = estimatedBitRate / 8 * durationMs / MediaConstants.MS_PER_SECOND;
+    }
+
+    /**
+     * 设置setup之后最多等待多久所有轨道的格式都确定，超时后processFrame抛出{@link ProcessException}，
+     * 需要在setup之前调用
+     */
+    public void setFormatTimeout(long timeoutMs) {
+        if (mState != State.INIT) {
+            throw new RuntimeException("only can set format timeout in init state");
+        }
+        mFormatTimeoutMs = timeoutMs;
     }
 
     public void addTrackProvider(FutureObject<MediaFormat> mediaFormat, Provider<Frame> provider) {
@@ -40,51 +136,193 @@ public class Muxer extends Stage {
 
     @Override
     public void setup() throws SetupException {
+        boolean canPreallocate = mPreallocateBytes > 0 && Build.VERSION.SDK_INT >= Build.VERSION_CODES.O;
         try {
-            mMediaMuxer = new MediaMuxer(mOutputPath, MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+            if (mOutputFd == null && !canPreallocate) {
+                mMediaMuxer = new MediaMuxer(mOutputPath, MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+            } else {
+                // 通过路径创建MediaMuxer时会清空文件，预分配时需要自己打开文件再传fd
+                FileDescriptor fd = mOutputFd;
+                if (fd == null) {
+                    mOutputFile = new RandomAccessFile(mOutputPath, "rw");
+                    mOutputFile.setLength(0);
+                    fd = mOutputFile.getFD();
+                }
+                if (canPreallocate) {
+                    preallocate(fd);
+                }
+                mMediaMuxer = new MediaMuxer(fd, MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+            }
         } catch (IOException e) {
             throw new SetupException("can't updateExtractor MediaMuxer.", e);
         }
 
-        try {
-            for (TrackWriter writer : mTrackWriters) {
-                MediaFormat mediaFormat = writer.getOutputMediaFormat();
-                int trackIndex = mMediaMuxer.addTrack(mediaFormat);
-                MeLog.i(TAG, "track[%d]: %s", trackIndex, mediaFormat);
-                writer.setTrackIndex(trackIndex);
-            }
-        } catch (Exception e) {
-            throw new SetupException("add track failed.", e);
-        }
-
-        mMediaMuxer.start();
+        // 不等待编码器输出格式，先暂存数据，所有轨道的格式都确定后再启动MediaMuxer
+        mSetupTime = SystemClock.elapsedRealtime();
         setState(State.SETUPED);
-        MeLog.i(TAG, "muxer configured");
+        MeLog.i(TAG, "muxer configured, waiting for track formats");
     }
 
     @Override
-    public void processFrame() {
+    public void processFrame() throws ProcessException {
         boolean isAllWriterEnd = true;
-        for (TrackWriter writer : mTrackWriters) {
+        for (int i = 0; i < mTrackWriters.size(); ++i) {
+            TrackWriter writer = mTrackWriters.get(i);
             if (!writer.isWriteEnd()) {
                 isAllWriterEnd = false;
                 writer.processFrame();
             }
         }
 
-        if (isAllWriterEnd) {
+        if (!mIsMuxerStarted) {
+            startMuxerIfReady();
+        }
+
+        if (isAllWriterEnd && (mIsMuxerStarted || mIsNothingToMux)) {
             setState(State.DONE);
         }
     }
 
+    /**
+     * 启动之前需要轮询各个轨道的格式是否已经确定
+     */
+    @Override
+    protected boolean isPollingRequired() {
+        return !mIsMuxerStarted && !mIsNothingToMux;
+    }
+
     @Override
     public void release() {
         MeLog.i(TAG, "release muxer");
         if (mMediaMuxer != null) {
-            mMediaMuxer.stop();
+            if (mIsMuxerStarted) {
+                mMediaMuxer.stop();
+            }
             mMediaMuxer.release();
             mMediaMuxer = null;
         }
+
+        if (mPreallocatedFd != null) {
+            truncateToContent(mPreallocatedFd);
+            mPreallocatedFd = null;
+        }
+        MediaUtils.closeQuietly(mOutputFile);
+        mOutputFile = null;
+    }
+
+    private void preallocate(FileDescriptor fd) {
+        try {
+            long startTime = System.currentTimeMillis();
+            Os.posix_fallocate(fd, 0, mPreallocateBytes);
+            mPreallocatedFd = fd;
+            MeLog.i(TAG, "preallocated %d bytes, cost: %d", mPreallocateBytes, System.currentTimeMillis() - startTime);
+        } catch (ErrnoException e) {
+            // 有的文件系统不支持，不影响写入
+            MeLog.w(TAG, "preallocate failed: %s", e.getMessage());
+        }
+    }
+
+    /**
+     * 预分配的空间没有用完时，MediaMuxer写完后文件末尾是一段0，按照mp4的顶层box找到实际的结尾后截断
+     */
+    private static void truncateToContent(FileDescriptor fd) {
+        try {
+            long fileSize = Os.fstat(fd).st_size;
+            long contentSize = findMp4ContentEnd(fd, fileSize);
+            if (contentSize <= 0 || contentSize >= fileSize) {
+                MeLog.w(TAG, "skip truncate, content size: %d, file size: %d", contentSize, fileSize);
+                return;
+            }
+            Os.ftruncate(fd, contentSize);
+            MeLog.i(TAG, "truncate %d -> %d", fileSize, contentSize);
+        } catch (ErrnoException | IOException e) {
+            MeLog.w(TAG, "truncate failed: %s", e.getMessage());
+        }
+    }
+
+    /**
+     * @return 最后一个顶层box的结尾，文件格式不对时返回-1
+     */
+    private static long findMp4ContentEnd(FileDescriptor fd, long fileSize) throws ErrnoException, IOException {
+        byte[] header = new byte[LARGE_BOX_HEADER_SIZE];
+        ByteBuffer headerBuffer = ByteBuffer.wrap(header);
+        long position = 0;
+        while (position + BOX_HEADER_SIZE <= fileSize) {
+            if (Os.pread(fd, header, 0, LARGE_BOX_HEADER_SIZE, position) < BOX_HEADER_SIZE) {
+                return -1;
+            }
+
+            // 类型全是0说明已经到了预分配的空白区域
+            if (headerBuffer.getInt(4) == 0) {
+                break;
+            }
+
+            long boxSize = headerBuffer.getInt(0) & 0xFFFFFFFFL;
+            if (boxSize == 1) {
+                boxSize = headerBuffer.getLong(BOX_HEADER_SIZE);
+            }
+            if (boxSize < BOX_HEADER_SIZE || position + boxSize > fileSize) {
+                return -1;
+            }
+            position += boxSize;
+        }
+        return position;
+    }
+
+    /**
+     * <p>所有轨道的格式都确定后启动MediaMuxer</p>
+     * 没有确定格式就已经结束的轨道（上游一帧都没有输出）不再等待，也不添加到文件中；
+     * 其他轨道超过{@link #mFormatTimeoutMs}还没有确定格式时抛出异常，不会一直轮询下去。
+     */
+    private void startMuxerIfReady() throws ProcessException {
+        int readyCount = 0;
+        for (int i = 0; i < mTrackWriters.size(); ++i) {
+            TrackWriter writer = mTrackWriters.get(i);
+            if (writer.isOutputMediaFormatReady()) {
+                readyCount++;
+            } else if (!writer.isWriteEnd()) {
+                long waitTime = SystemClock.elapsedRealtime() - mSetupTime;
+                if (waitTime > mFormatTimeoutMs) {
+                    throw new ProcessException("track " + i + " format isn't ready after " + waitTime + "ms");
+                }
+                return;
+            }
+        }
+
+        if (readyCount == 0) {
+            MeLog.w(TAG, "all tracks ended without output format, nothing to mux");
+            mIsNothingToMux = true;
+            return;
+        }
+
+        try {
+            for (int i = 0; i < mTrackWriters.size(); ++i) {
+                TrackWriter writer = mTrackWriters.get(i);
+                if (!writer.isOutputMediaFormatReady()) {
+                    MeLog.w(TAG, "skip track %d, it ended without output format", i);
+                    writer.discardStagedSamples();
+                    continue;
+                }
+
+                MediaFormat mediaFormat = writer.getOutputMediaFormat();
+                int trackIndex = mMediaMuxer.addTrack(mediaFormat);
+                MeLog.i(TAG, "track[%d]: %s", trackIndex, mediaFormat);
+                writer.setTrackIndex(trackIndex);
+            }
+        } catch (Exception e) {
+            throw new ProcessException("add track failed.", e);
+        }
+
+        mMediaMuxer.start();
+        mIsMuxerStarted = true;
+        MeLog.i(TAG, "muxer started");
+
+        for (int i = 0; i < mTrackWriters.size(); ++i) {
+            TrackWriter writer = mTrackWriters.get(i);
+            if (writer.isAdded()) {
+                writer.flushStagedSamples();
+            }
+        }
     }
 
     private class TrackWriter {
@@ -93,9 +331,20 @@ public class Muxer extends Stage {
         private final MediaCodec.BufferInfo mBufferInfo;
 
         private int mTrackIndex;
+        private boolean mIsAdded;
         private boolean mIsWriteEnd;
         private long mLastFramePts;
 
+        /**
+         * MediaMuxer启动之前暂存的数据，需要时才分配
+         */
+        private SampleStagingBuffer mStagingBuffer;
+
+        /**
+         * 暂存不下的那一帧，MediaMuxer启动之后才归还
+         */
+        private Frame mWaitingFrame;
+
         private TrackWriter(FutureObject<MediaFormat> futureMediaFormat, Provider<Frame> provider) {
             mFutureMediaFormat = futureMediaFormat;
             mIsWriteEnd = false;
@@ -110,18 +359,66 @@ public class Muxer extends Stage {
 
         private void setTrackIndex(int index) {
             mTrackIndex = index;
+            mIsAdded = true;
+        }
+
+        private boolean isAdded() {
+            return mIsAdded;
+        }
+
+        private boolean isOutputMediaFormatReady() {
+            return mFutureMediaFormat.isDone();
         }
 
         private MediaFormat getOutputMediaFormat() throws ExecutionException, InterruptedException {
             return mFutureMediaFormat.get();
         }
 
+        /**
+         * 该轨道不会添加到文件中，丢掉暂存的数据
+         */
+        private void discardStagedSamples() {
+            if (mStagingBuffer != null) {
+                MeLog.w(TAG, "discard %d staged samples", mStagingBuffer.getSampleCount());
+                mStagingBuffer = null;
+            }
+        }
+
+        private void flushStagedSamples() {
+            if (mStagingBuffer != null) {
+                int count = mStagingBuffer.getSampleCount();
+                for (int i = 0; i < count; ++i) {
+                    mStagingBuffer.getSampleInfo(i, mBufferInfo);
+                    writeSampleData(mStagingBuffer.getData());
+                }
+                MeLog.i(TAG, "[%d] flush %d staged samples", mTrackIndex, count);
+                mStagingBuffer = null;
+            }
+
+            if (mWaitingFrame != null) {
+                Frame frame = mWaitingFrame;
+                mWaitingFrame = null;
+                mBufferInfo.offset = frame.offset;
+                mBufferInfo.size = frame.size;
+                mBufferInfo.presentationTimeUs = frame.presentationTimeUs;
+                mBufferInfo.flags = frame.flags;
+                writeSampleData(frame.buffer);
+                mFrameProvider.enqueueOutputBuffer(frame);
+            }
+        }
+
         @SuppressWarnings("ConstantConditions")
         private void processFrame() {
+            // 暂存满了就先不读取，等MediaMuxer启动
+            if (mWaitingFrame != null) {
+                return;
+            }
+
             Frame frame = mFrameProvider.dequeueOutputBuffer();
             if (frame == null) {
                 return;
             }
+            mMetrics.recordFrameIn();
 
             do {
                 if (MediaUtils.hasEosFlag(frame.flags)) {
@@ -143,16 +440,42 @@ public class Muxer extends Stage {
                 }
                 mLastFramePts = frame.presentationTimeUs;
 
-                mBufferInfo.offset = frame.offset;
-                mBufferInfo.size = frame.size;
-                mBufferInfo.presentationTimeUs = frame.presentationTimeUs;
-                mBufferInfo.flags = frame.flags;
-                mMediaMuxer.writeSampleData(mTrackIndex, frame.buffer, mBufferInfo);
-                MeLog.v(TAG, "[%d] size: %d, time: %d, flag: %d",
-                        mTrackIndex, frame.size, mBufferInfo.presentationTimeUs, mBufferInfo.flags);
+                if (mIsMuxerStarted) {
+                    mBufferInfo.offset = frame.offset;
+                    mBufferInfo.size = frame.size;
+                    mBufferInfo.presentationTimeUs = frame.presentationTimeUs;
+                    mBufferInfo.flags = frame.flags;
+                    writeSampleData(frame.buffer);
+                } else if (!stageFrame(frame)) {
+                    // 先持有这一帧不归还，启动后直接写出
+                    mWaitingFrame = frame;
+                    return;
+                }
             } while (false);
 
             mFrameProvider.enqueueOutputBuffer(frame);
         }
+
+        /**
+         * @return 暂存空间不够则返回false
+         */
+        private boolean stageFrame(Frame frame) {
+            if (mStagingBuffer == null) {
+                mStagingBuffer = new SampleStagingBuffer(mStagingBytesPerTrack, MAX_STAGING_SAMPLES);
+            }
+            return mStagingBuffer.append(frame.buffer, frame.offset, frame.size, frame.presentationTimeUs,
+                    frame.flags);
+        }
+
+        private void writeSampleData(ByteBuffer buffer) {
+            long traceStartNs = PipelineTracer.now();
+            mMediaMuxer.writeSampleData(mTrackIndex, buffer, mBufferInfo);
+            PipelineTracer.complete(PipelineTracer.CATEGORY_CODEC, "writeSampleData", traceStartNs,
+                    mBufferInfo.presentationTimeUs);
+            if (MeLog.isLoggable(MeLog.LEVEL_VERBOSE)) {
+                MeLog.v(TAG, "[%d] size: %d, time: %d, flag: %d",
+                        mTrackIndex, mBufferInfo.size, mBufferInfo.presentationTimeUs, mBufferInfo.flags);
+            }
+        }
     }
 }
@@ -0,0 +1,75 @@
+package com.winom.multimedia.writer;
+
+import android.media.MediaCodec;
+
+import java.nio.ByteBuffer;
+
+/**
+ * <p>MediaMuxer启动之前暂存某个轨道的压缩数据</p>
+ * 数据拷贝到预先分配好的堆外内存中，按顺序追加，启动后一次性按顺序写出。
+ * 容量有限，满了之后需要等待MediaMuxer启动，不会无限制地占用内存。
+ */
+class SampleStagingBuffer {
+    private final ByteBuffer mData;
+    private final int[] mOffsets;
+    private final int[] mSizes;
+    private final int[] mFlags;
+    private final long[] mPresentationTimeUs;
+    private int mSampleCount = 0;
+
+    /**
+     * @param byteCapacity 最多暂存多少字节
+     * @param maxSampleCount 最多暂存多少帧
+     */
+    SampleStagingBuffer(int byteCapacity, int maxSampleCount) {
+        mData = ByteBuffer.allocateDirect(byteCapacity);
+        mOffsets = new int[maxSampleCount];
+        mSizes = new int[maxSampleCount];
+        mFlags = new int[maxSampleCount];
+        mPresentationTimeUs = new long[maxSampleCount];
+    }
+
+    /**
+     * 拷贝一帧数据，不会修改src的position和limit
+     * @return 空间不够则返回false
+     */
+    boolean append(ByteBuffer src, int offset, int size, long presentationTimeUs, int flags) {
+        if (mSampleCount == mOffsets.length || mData.remaining() < size) {
+            return false;
+        }
+
+        int oldPosition = src.position();
+        int oldLimit = src.limit();
+        src.limit(offset + size);
+        src.position(offset);
+
+        mOffsets[mSampleCount] = mData.position();
+        mSizes[mSampleCount] = size;
+        mFlags[mSampleCount] = flags;
+        mPresentationTimeUs[mSampleCount] = presentationTimeUs;
+        mData.put(src);
+        mSampleCount++;
+
+        src.limit(oldLimit);
+        src.position(oldPosition);
+        return true;
+    }
+
+    int getSampleCount() {
+        return mSampleCount;
+    }
+
+    /**
+     * 取出第index帧的信息，数据在{@link #getData()}中的info.offset处
+     */
+    void getSampleInfo(int index, MediaCodec.BufferInfo info) {
+        info.offset = mOffsets[index];
+        info.size = mSizes[index];
+        info.presentationTimeUs = mPresentationTimeUs[index];
+        info.flags = mFlags[index];
+    }
+
+    ByteBuffer getData() {
+        return mData;
+    }
+}
@@ -11,23 +11,61 @@ import com.winom.multimedia.source.Frame;
 import com.winom.multimedia.utils.MediaConstants;
 import com.winom.multimedia.utils.MediaUtils;
 
-import java.io.BufferedOutputStream;
-import java.io.DataOutputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
-
+import java.nio.channels.FileChannel;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * <p>把PCM写成wav文件</p>
+ * 通过FileChannel直接写出Frame的buffer，direct buffer不经过Java堆；上游积压的多帧通过一次gathering write写出，
+ * 文件头中的长度在release时按位置改写。
+ * 上游的buffer可能同时被其他读取者使用（{@link com.winom.multimedia.pipeline.BroadcastProvider}），
+ * 写之前只修改自己duplicate出来的视图的position和limit，不修改上游的buffer。
+ */
 public class WavWriter extends Stage {
+    private static final int HEADER_SIZE = 44;
+    private static final int RIFF_SIZE_OFFSET = 4;
+    private static final int DATA_SIZE_OFFSET = 40;
+
+    /**
+     * 一次gathering write最多写出的帧数
+     */
+    private static final int MAX_GATHER_FRAMES = 16;
+
+    /**
+     * 缓存的buffer视图个数上限，上游每次都给出新的buffer时，超过后清空重新缓存
+     */
+    private static final int MAX_BUFFER_VIEWS = 64;
+
     private final String mFilePath;
     private final int mSampleRate;
     private final int mChannelCount;
     private final Provider<Frame> mAudioProvider;
 
-    private DataOutputStream mOutputStream;
+    private FileOutputStream mOutputStream;
+    private FileChannel mFileChannel;
     private long mWroteCount = 0;
 
+    /**
+     * 一次写出的帧和它们的buffer视图
+     */
+    private final Frame[] mGatherFrames = new Frame[MAX_GATHER_FRAMES];
+    private final ByteBuffer[] mGatherBuffers = new ByteBuffer[MAX_GATHER_FRAMES];
+
+    /**
+     * 上游buffer到它的duplicate的映射，上游的buffer一般是复用的，每个buffer只duplicate一次
+     */
+    private final Map<ByteBuffer, ByteBuffer> mBufferViews = new IdentityHashMap<>();
+
+    /**
+     * 写文件头中长度用的buffer
+     */
+    private final ByteBuffer mSizeBuffer = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+
     public WavWriter(String filepath, int sampleRate, int channelCnt, Provider<Frame> provider) {
         mFilePath = filepath;
         mSampleRate = sampleRate;
@@ -38,7 +76,7 @@ public class WavWriter extends Stage {
     @SuppressWarnings("ConstantConditions")
     @Override
     public void setup() throws SetupException {
-        ByteBuffer byteBuffer = ByteBuffer.allocate(44);
+        ByteBuffer byteBuffer = ByteBuffer.allocate(HEADER_SIZE);
         byteBuffer.order(ByteOrder.LITTLE_ENDIAN);
         byteBuffer.putInt(0x46464952);
         byteBuffer.putInt(0);
@@ -53,12 +91,18 @@ public class WavWriter extends Stage {
         byteBuffer.putShort((short) (MediaConstants.AUDIO_FORMAT == AudioFormat.ENCODING_PCM_16BIT ? 16 : 8));
         byteBuffer.putInt(0x61746164);
         byteBuffer.putInt(0);
+        byteBuffer.flip();
 
         try {
-            mOutputStream = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(mFilePath)));
-            mOutputStream.write(byteBuffer.array());
-            mWroteCount = 44;
+            mOutputStream = new FileOutputStream(mFilePath);
+            mFileChannel = mOutputStream.getChannel();
+            while (byteBuffer.hasRemaining()) {
+                mFileChannel.write(byteBuffer);
+            }
+            mWroteCount = HEADER_SIZE;
         } catch (IOException e) {
+            MediaUtils.closeQuietly(mOutputStream);
+            mOutputStream = null;
             throw new SetupException("Open output stream failed.", e);
         }
 
@@ -67,55 +111,112 @@ public class WavWriter extends Stage {
 
     @Override
     public void processFrame() throws ProcessException {
-        Frame frame = mAudioProvider.dequeueOutputBuffer();
-        if (frame == null) {
-            return;
+        int count = 0;
+        boolean isEos = false;
+        while (count < MAX_GATHER_FRAMES) {
+            Frame frame = mAudioProvider.dequeueOutputBuffer();
+            if (frame == null) {
+                break;
+            }
+            mMetrics.recordFrameIn();
+
+            mGatherFrames[count++] = frame;
+            if (MediaUtils.hasEosFlag(frame.flags)) {
+                isEos = true;
+                break;
+            }
         }
 
-        if (MediaUtils.hasEosFlag(frame.flags)) {
-            setState(State.DONE);
+        if (count == 0) {
             return;
         }
 
-        frame.buffer.position(0);
         try {
-            mOutputStream.write(frame.buffer.array(), 0, frame.size);
-            mWroteCount += frame.size;
+            // EOS帧不包含数据
+            writeFrames(isEos ? count - 1 : count);
         } catch (IOException e) {
             throw new ProcessException("Write data to failed.", e);
         } finally {
-            mAudioProvider.enqueueOutputBuffer(frame);
+            for (int i = 0; i < count; ++i) {
+                mAudioProvider.enqueueOutputBuffer(mGatherFrames[i]);
+                mGatherFrames[i] = null;
+            }
+        }
+
+        if (isEos) {
+            setState(State.DONE);
         }
     }
 
     @Override
     public void release() throws ReleaseException {
-        try {
-            mOutputStream.close();
-        } catch (IOException e) {
-            throw new ReleaseException("Close file failed.", e);
+        if (mFileChannel == null) {
+            return;
         }
 
-        RandomAccessFile ras = null;
         try {
-            ras = new RandomAccessFile(mFilePath, "rw");
-            ras.seek(4);
-
-            // 文件总长度
-            ByteBuffer byteBuffer = ByteBuffer.allocate(4);
-            byteBuffer.order(ByteOrder.LITTLE_ENDIAN);
-            byteBuffer.putInt((int) (mWroteCount - 8));
-            ras.write(byteBuffer.array());
-
-            // 数据总长度
-            byteBuffer.rewind();
-            byteBuffer.putInt((int) (mWroteCount - 42));
-            ras.seek(40);
-            ras.write(byteBuffer.array());
+            // 文件总长度、数据总长度，wav中都是32位无符号数
+            writeSize(RIFF_SIZE_OFFSET, mWroteCount - 8);
+            writeSize(DATA_SIZE_OFFSET, mWroteCount - HEADER_SIZE);
         } catch (IOException e) {
             throw new ReleaseException("Write file header failed.", e);
         } finally {
-            MediaUtils.closeQuietly(ras);
+            MediaUtils.closeQuietly(mOutputStream);
+            mOutputStream = null;
+            mFileChannel = null;
+        }
+    }
+
+    /**
+     * 把mGatherFrames中前count帧的数据通过一次gathering write写出
+     */
+    private void writeFrames(int count) throws IOException {
+        if (count == 0) {
+            return;
+        }
+
+        long totalSize = 0;
+        for (int i = 0; i < count; ++i) {
+            Frame frame = mGatherFrames[i];
+            ByteBuffer view = getBufferView(frame.buffer);
+            view.clear();
+            view.limit(frame.offset + frame.size);
+            view.position(frame.offset);
+            mGatherBuffers[i] = view;
+            totalSize += frame.size;
+        }
+
+        try {
+            long written = 0;
+            while (written < totalSize) {
+                written += mFileChannel.write(mGatherBuffers, 0, count);
+            }
+            mWroteCount += totalSize;
+        } finally {
+            for (int i = 0; i < count; ++i) {
+                mGatherBuffers[i] = null;
+            }
+        }
+    }
+
+    private ByteBuffer getBufferView(ByteBuffer buffer) {
+        ByteBuffer view = mBufferViews.get(buffer);
+        if (view == null) {
+            if (mBufferViews.size() >= MAX_BUFFER_VIEWS) {
+                mBufferViews.clear();
+            }
+            view = buffer.duplicate();
+            mBufferViews.put(buffer, view);
+        }
+        return view;
+    }
+
+    private void writeSize(long position, long size) throws IOException {
+        mSizeBuffer.clear();
+        mSizeBuffer.putInt((int) Math.min(size, 0xFFFFFFFFL));
+        mSizeBuffer.flip();
+        while (mSizeBuffer.hasRemaining()) {
+            mFileChannel.write(mSizeBuffer, position + mSizeBuffer.position());
         }
     }
 }